@@ -0,0 +1,50 @@
+package peergos.email.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import peergos.email.EmailConverter;
+import peergos.email.RawAttachment;
+import peergos.shared.email.EmailMessage;
+import peergos.shared.util.Pair;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ EmailConverter.parseMail on messages carrying 1 to 10 attachments of up to 25 MB each.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class AttachmentParseBenchmark {
+
+    @Param({"1", "10"})
+    public int attachments;
+
+    @Param({"64", "1024", "25600"})
+    public int attachmentKilobytes;
+
+    private byte[] raw;
+
+    @Setup
+    public void setup() throws Exception {
+        raw = MimeCorpus.message(MimeCorpus.Shape.ATTACHMENTS, attachments, attachmentKilobytes * 1024);
+    }
+
+    @Benchmark
+    public Pair<EmailMessage, List<RawAttachment>> parse() throws Exception {
+        return EmailConverter.parseMail(MimeCorpus.parse(raw), () -> "<generated@example.com>");
+    }
+
+    @Benchmark
+    public void parseAndRead(Blackhole bh) throws Exception {
+        Pair<EmailMessage, List<RawAttachment>> parsed = parse();
+        for (RawAttachment attachment : parsed.right) {
+            bh.consume(attachment.read());
+        }
+        bh.consume(parsed.left);
+    }
+}
@@ -0,0 +1,60 @@
+package peergos.email.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.simplejavamail.api.email.Email;
+import peergos.email.EmailConverter;
+import peergos.shared.email.EmailMessage;
+import peergos.shared.util.Pair;
+
+import javax.activation.DataSource;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/*
+ EmailConverter.toEmail on outbound emails at the end of reply and forward chains. Each email in a chain has
+ two attachments. The round trip variant also builds the sent copy, which is what toSentEmailMessage does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BuildBenchmark {
+
+    @Param({"0", "5", "20"})
+    public int depth;
+
+    @Param({"false", "true"})
+    public boolean forward;
+
+    private EmailMessage email;
+    private final Map<String, DataSource> sources = new HashMap<>();
+
+    @Setup
+    public void setup() {
+        email = MimeCorpus.chain(depth, forward, 2, sources);
+    }
+
+    @Benchmark
+    public Pair<Email, Optional<EmailMessage>> toEmail() {
+        return EmailConverter.toEmail(email, sources, false);
+    }
+
+    @Benchmark
+    public Pair<Email, Optional<EmailMessage>> toEmailRoundTrip() {
+        return EmailConverter.toEmail(email, sources, true);
+    }
+
+    /**
+     * Build the email and encode it to MIME, attachments included, as the SMTP transport would
+     */
+    @Benchmark
+    public void toEmailAndEncode() throws Exception {
+        Email built = EmailConverter.toEmail(email, sources, false).left;
+        org.simplejavamail.converter.EmailConverter.emailToMimeMessage(built).writeTo(OutputStream.nullOutputStream());
+    }
+}
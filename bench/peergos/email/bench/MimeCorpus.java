@@ -0,0 +1,162 @@
+package peergos.email.bench;
+
+import peergos.shared.email.Attachment;
+import peergos.shared.email.EmailMessage;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/*
+ Synthetic messages for the benchmarks. Everything is generated from a fixed seed, so runs compare like with like.
+ */
+public class MimeCorpus {
+
+    public enum Shape {
+        PLAIN, ALTERNATIVE, INLINE_IMAGE, CALENDAR, ATTACHMENTS
+    }
+
+    private static final Session SESSION = Session.getInstance(new Properties());
+    private static final String CALENDAR = "BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:-//bench//EN\r\nMETHOD:REQUEST\r\n"
+            + "BEGIN:VEVENT\r\nUID:bench-event@example.com\r\nDTSTAMP:20240101T090000Z\r\nDTSTART:20240102T090000Z\r\n"
+            + "DTEND:20240102T100000Z\r\nSUMMARY:Planning\r\nORGANIZER:mailto:alice@example.com\r\n"
+            + "ATTENDEE:mailto:bob@example.com\r\nEND:VEVENT\r\nEND:VCALENDAR\r\n";
+
+    /**
+     * @return the raw bytes of a message, as they would come off the IMAP connection
+     */
+    public static byte[] message(Shape shape, int attachments, int attachmentBytes) throws MessagingException, IOException {
+        MimeMessage msg = new MimeMessage(SESSION);
+        msg.setFrom(new InternetAddress("alice@example.com"));
+        msg.setRecipients(Message.RecipientType.TO, "bob@example.com, carol@example.com");
+        msg.setRecipients(Message.RecipientType.CC, "dave@example.com");
+        msg.setSubject(shape == Shape.CALENDAR ? "Invitation: Planning" : "Quarterly numbers");
+        msg.setSentDate(new Date(1704096000000L));
+        msg.setHeader("Message-ID", "<bench." + shape + "@example.com>");
+        String text = text(4 * 1024);
+        switch (shape) {
+            case PLAIN:
+                msg.setText(text, "UTF-8");
+                break;
+            case ALTERNATIVE:
+                msg.setContent(alternative(text));
+                break;
+            case INLINE_IMAGE: {
+                MimeMultipart related = new MimeMultipart("related");
+                related.addBodyPart(bodyPart("<p>" + text + "</p><img src=\"cid:logo\">", "text/html; charset=UTF-8"));
+                MimeBodyPart image = attachment("logo.png", "image/png", bytes(32 * 1024, 1));
+                image.setContentID("<logo>");
+                image.setDisposition(MimeBodyPart.INLINE);
+                related.addBodyPart(image);
+                msg.setContent(related);
+                break;
+            }
+            case CALENDAR: {
+                MimeMultipart alternative = alternative(text);
+                alternative.addBodyPart(bodyPart(CALENDAR, "text/calendar; charset=UTF-8; method=REQUEST"));
+                msg.setContent(alternative);
+                break;
+            }
+            case ATTACHMENTS: {
+                MimeMultipart mixed = new MimeMultipart("mixed");
+                mixed.addBodyPart(bodyPart(text, "text/plain; charset=UTF-8"));
+                for (int i = 0; i < attachments; i++) {
+                    mixed.addBodyPart(attachment("file-" + i + ".bin", "application/octet-stream",
+                            bytes(attachmentBytes, i)));
+                }
+                msg.setContent(mixed);
+                break;
+            }
+        }
+        msg.saveChanges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msg.writeTo(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * A fresh copy of a message, detached from any folder like the ones the IMAP client hands to the parser
+     */
+    public static MimeMessage parse(byte[] raw) throws MessagingException {
+        return new MimeMessage(null, new ByteArrayInputStream(raw));
+    }
+
+    /**
+     * An outbound email that replies to, or forwards, a chain of earlier emails
+     * @param forward true to build a chain of forwards, each one carrying the attachments of the email it forwards
+     */
+    public static EmailMessage chain(int depth, boolean forward, int attachmentsPerEmail, Map<String, DataSource> sources) {
+        EmailMessage email = email(0, attachmentsPerEmail, sources, Optional.empty(), Optional.empty());
+        for (int i = 1; i <= depth; i++) {
+            Optional<EmailMessage> previous = Optional.of(email);
+            email = forward ?
+                    email(i, attachmentsPerEmail, sources, Optional.empty(), previous) :
+                    email(i, attachmentsPerEmail, sources, previous, Optional.empty());
+        }
+        return email;
+    }
+
+    private static EmailMessage email(int index, int attachments, Map<String, DataSource> sources,
+                                      Optional<EmailMessage> replyingTo, Optional<EmailMessage> forwarding) {
+        List<Attachment> refs = new ArrayList<>();
+        for (int i = 0; i < attachments; i++) {
+            String uuid = "attachment-" + index + "-" + i;
+            byte[] data = bytes(64 * 1024, index * 31 + i);
+            sources.put(uuid, new ByteArrayDataSource(data, "application/pdf"));
+            refs.add(new Attachment("report-" + index + "-" + i + ".pdf", data.length, "application/pdf", uuid));
+        }
+        return new EmailMessage("id-" + index, "<msg-" + index + "@example.com>", "alice@example.com",
+                "Re: Quarterly numbers " + index, LocalDateTime.of(2024, 1, 1, 9, 0).plusMinutes(index),
+                Arrays.asList("bob@example.com"), Arrays.asList("carol@example.com"), Collections.emptyList(),
+                text(1024), false, false, refs, "", replyingTo, forwarding, Optional.empty());
+    }
+
+    private static MimeMultipart alternative(String text) throws MessagingException {
+        MimeMultipart alternative = new MimeMultipart("alternative");
+        alternative.addBodyPart(bodyPart(text, "text/plain; charset=UTF-8"));
+        alternative.addBodyPart(bodyPart("<html><body><p>" + text + "</p></body></html>", "text/html; charset=UTF-8"));
+        return alternative;
+    }
+
+    private static MimeBodyPart bodyPart(String content, String type) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setContent(content, type);
+        return part;
+    }
+
+    private static MimeBodyPart attachment(String filename, String type, byte[] data) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(new ByteArrayDataSource(data, type)));
+        part.setFileName(filename);
+        part.setDisposition(MimeBodyPart.ATTACHMENT);
+        return part;
+    }
+
+    private static String text(int length) {
+        Random random = new Random(length);
+        String[] words = {"the", "bridge", "sends", "quarterly", "numbers", "to", "everyone", "on", "the", "list"};
+        StringBuilder sb = new StringBuilder(length + 16);
+        while (sb.length() < length) {
+            sb.append(words[random.nextInt(words.length)]).append(sb.length() % 80 > 70 ? "\r\n" : " ");
+        }
+        return sb.toString();
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,50 @@
+package peergos.email.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import peergos.email.EmailConverter;
+import peergos.email.RawAttachment;
+import peergos.shared.email.EmailMessage;
+import peergos.shared.util.Pair;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ EmailConverter.parseMail on messages of each shape, starting from the raw bytes as downloaded over IMAP.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    @Param({"PLAIN", "ALTERNATIVE", "INLINE_IMAGE", "CALENDAR"})
+    public MimeCorpus.Shape shape;
+
+    private byte[] raw;
+
+    @Setup
+    public void setup() throws Exception {
+        raw = MimeCorpus.message(shape, 0, 0);
+    }
+
+    @Benchmark
+    public Pair<EmailMessage, List<RawAttachment>> parse() throws Exception {
+        return EmailConverter.parseMail(MimeCorpus.parse(raw), () -> "<generated@example.com>");
+    }
+
+    /**
+     * Parse and then read every attachment, as the upload step does
+     */
+    @Benchmark
+    public void parseAndRead(Blackhole bh) throws Exception {
+        Pair<EmailMessage, List<RawAttachment>> parsed = parse();
+        for (RawAttachment attachment : parsed.right) {
+            bh.consume(attachment.read());
+        }
+        bh.consume(parsed.left);
+    }
+}
@@ -0,0 +1,98 @@
+package peergos.email;
+
+import peergos.server.apps.email.EmailBridgeClient;
+import peergos.shared.user.UserContext;
+import peergos.shared.user.fs.FileProperties;
+import peergos.shared.user.fs.FileWrapper;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ Per account cache of resolved email directories and bridge clients. A cached directory is brought up to date with
+ getUpdated, which only fetches the latest version of its writer, instead of walking the path from the root again.
+ A bridge client is rebuilt when the user's encryption key file changes, or after the account has failed.
+ */
+public class AccountDirectoryCache {
+
+    private static class CachedBridge {
+        public final String emailAddress;
+        public final EmailBridgeClient client;
+        public final FileWrapper keyFile;
+
+        public CachedBridge(String emailAddress, EmailBridgeClient client, FileWrapper keyFile) {
+            this.emailAddress = emailAddress;
+            this.client = client;
+            this.keyFile = keyFile;
+        }
+    }
+
+    private final UserContext context;
+    // username -> path -> directory
+    private final Map<String, Map<String, FileWrapper>> directories = new ConcurrentHashMap<>();
+    private final Map<String, CachedBridge> bridges = new ConcurrentHashMap<>();
+
+    public AccountDirectoryCache(UserContext context) {
+        this.context = context;
+    }
+
+    public Optional<FileWrapper> getDirectory(String username, String path) {
+        Map<String, FileWrapper> userDirs = directories.computeIfAbsent(username, u -> new ConcurrentHashMap<>());
+        FileWrapper cached = userDirs.get(path);
+        if (cached != null) {
+            try {
+                FileWrapper updated = cached.getUpdated(context.network).join();
+                userDirs.put(path, updated);
+                return Optional.of(updated);
+            } catch (Exception e) {
+                // moved or removed, resolve it from the root again
+                userDirs.remove(path);
+            }
+        }
+        Optional<FileWrapper> resolved = context.getByPath(path).join();
+        resolved.ifPresent(dir -> userDirs.put(path, dir));
+        return resolved;
+    }
+
+    public Optional<FileWrapper> getChild(String username, String directoryPath, String name) {
+        return getDirectory(username, directoryPath)
+                .flatMap(dir -> dir.getChild(name, context.crypto.hasher, context.network).join());
+    }
+
+    /**
+     * @return empty if the user has not set up the bridge yet
+     */
+    public Optional<EmailBridgeClient> getBridge(String username, String emailAddress) {
+        CachedBridge cached = bridges.get(username);
+        if (cached != null && cached.emailAddress.equals(emailAddress)) {
+            try {
+                FileWrapper keyFile = cached.keyFile.getUpdated(context.network).join();
+                if (sameContents(cached.keyFile.getFileProperties(), keyFile.getFileProperties())) {
+                    return Optional.of(cached.client);
+                }
+            } catch (Exception e) {
+                // the key file has gone, rebuild below
+            }
+            bridges.remove(username);
+        }
+        try {
+            EmailBridgeClient client = EmailBridgeClient.build(context, username, emailAddress);
+            context.getByPath(username + "/.apps/email/data/default/pending/encryption.publickey.cbor").join()
+                    .ifPresent(keyFile -> bridges.put(username, new CachedBridge(emailAddress, client, keyFile)));
+            return Optional.of(client);
+        } catch (NoSuchElementException ex) {
+            return Optional.empty();
+        }
+    }
+
+    public void invalidate(String username) {
+        directories.remove(username);
+        bridges.remove(username);
+    }
+
+    private static boolean sameContents(FileProperties a, FileProperties b) {
+        return a.size == b.size && a.modified.equals(b.modified);
+    }
+}
@@ -0,0 +1,28 @@
+package peergos.email;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ Names for the per-account files the bridge keeps in shared directories. An account is hashed rather than used as the
+ name, so any email address gives a valid filename, and two accounts only collide if 128 bits of SHA-256 do.
+ */
+public class AccountFiles {
+
+    /**
+     * @return the name of the file for an account, ending in suffix
+     */
+    public static String name(String account, String suffix) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(account.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb + suffix;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package peergos.email;
+
+import peergos.shared.io.ipfs.api.JSONParser;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/*
+ Holds the parsed accounts file in memory. The file is watched and only re-read when it changes,
+ and each reload is applied as a diff so records of unchanged accounts are kept as they are.
+ */
+public class AccountRegistry {
+
+    private static final List<String> FIELDS = Arrays.asList("username", "emailAddress", "smtpUsername",
+            "smtpPassword", "imapUsername", "imapPassword");
+
+    public static class Diff {
+        public final Set<String> added;
+        public final Set<String> removed;
+        public final Set<String> changed;
+
+        public Diff(Set<String> added, Set<String> removed, Set<String> changed) {
+            this.added = added;
+            this.removed = removed;
+            this.changed = changed;
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "added: " + added.size() + ", removed: " + removed.size() + ", changed: " + changed.size();
+        }
+    }
+
+    private final Path file;
+    private final List<Consumer<Diff>> listeners = new CopyOnWriteArrayList<>();
+    private volatile Map<String, Map<String, String>> accounts = Collections.emptyMap();
+    private volatile long lastModified = -1;
+    private volatile long lastSize = -1;
+    private volatile Optional<WatchService> watcher = Optional.empty();
+    private volatile boolean shutdown = false;
+
+    public AccountRegistry(Path file) {
+        this.file = file;
+        reload(true);
+    }
+
+    /**
+     * Watch the accounts file for changes. Without a watcher the file's timestamp is checked on each call to accounts()
+     */
+    public void startWatching() {
+        Path dir = file.toAbsolutePath().getParent();
+        try {
+            WatchService service = dir.getFileSystem().newWatchService();
+            dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            watcher = Optional.of(service);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Unable to watch " + dir + ", the accounts file will be checked on each run");
+            return;
+        }
+        Thread t = new Thread(this::watchLoop, "account-registry-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return an immutable snapshot of the valid accounts, keyed by email address
+     */
+    public Map<String, Map<String, String>> accounts() {
+        if (watcher.isEmpty() && isModified()) {
+            reload(false);
+        }
+        return accounts;
+    }
+
+    public void addListener(Consumer<Diff> listener) {
+        listeners.add(listener);
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        watcher.ifPresent(w -> {
+            try {
+                w.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private void watchLoop() {
+        WatchService service = watcher.get();
+        Path name = file.getFileName();
+        while (!shutdown) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            boolean relevant = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context())) {
+                    relevant = true;
+                }
+            }
+            if (relevant) {
+                reload(false);
+            }
+            if (!key.reset()) {
+                System.err.println("Accounts directory is no longer accessible, the accounts file will be checked on each run");
+                watcher = Optional.empty();
+                return;
+            }
+        }
+    }
+
+    private boolean isModified() {
+        return file.toFile().lastModified() != lastModified || file.toFile().length() != lastSize;
+    }
+
+    private synchronized void reload(boolean initial) {
+        long modified = file.toFile().lastModified();
+        long size = file.toFile().length();
+        Map<String, Map<String, String>> updated;
+        try {
+            updated = parse(file);
+        } catch (Exception e) {
+            if (initial) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+            System.err.println(LocalDateTime.now() + " Unable to reload accounts file: " + file + ", keeping the previous accounts");
+            e.printStackTrace();
+            return;
+        }
+        lastModified = modified;
+        lastSize = size;
+
+        Map<String, Map<String, String>> current = accounts;
+        Map<String, Map<String, String>> next = new HashMap<>();
+        Set<String> added = new HashSet<>();
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, Map<String, String>> entry : updated.entrySet()) {
+            Map<String, String> existing = current.get(entry.getKey());
+            if (existing == null) {
+                added.add(entry.getKey());
+                next.put(entry.getKey(), entry.getValue());
+            } else if (!existing.equals(entry.getValue())) {
+                changed.add(entry.getKey());
+                next.put(entry.getKey(), entry.getValue());
+            } else {
+                next.put(entry.getKey(), existing);
+            }
+        }
+        Set<String> removed = new HashSet<>(current.keySet());
+        removed.removeAll(updated.keySet());
+
+        Diff diff = new Diff(added, removed, changed);
+        if (diff.isEmpty()) {
+            return;
+        }
+        accounts = Collections.unmodifiableMap(next);
+        System.out.println(LocalDateTime.now() + " Loaded accounts file. " + diff);
+        for (Consumer<Diff> listener : listeners) {
+            try {
+                listener.accept(diff);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    private static Map<String, Map<String, String>> parse(Path emailAccountsFilePath) throws IOException {
+        Map<String, Map<String, String>> accounts = new HashMap<>();
+        if (! emailAccountsFilePath.toFile().exists())
+            return accounts;
+        byte[] data = Files.readAllBytes(emailAccountsFilePath);
+        List<Map<String, String>> props = (List<Map<String, String>>) JSONParser.parse(new String(data));
+        for(Map<String, String> record : props) {
+            boolean isValid = true;
+            for (String field : FIELDS) {
+                if (record.get(field) == null) {
+                    System.err.println("Field:" + field + " not found");
+                    isValid = false;
+                }
+            }
+            if (isValid) {
+                accounts.put(record.get("emailAddress"), Collections.unmodifiableMap(new HashMap<>(record)));
+            }
+        }
+        return accounts;
+    }
+}
@@ -0,0 +1,99 @@
+package peergos.email;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ Keeps the backoff state and the poll interval of each account. A failing account only pushes back its own next attempt,
+ everyone else keeps being processed. An account that moves mail is polled at the minimum interval,
+ and each idle poll doubles its interval up to the maximum.
+ */
+public class AccountScheduler {
+
+    public static final long MAX_DELAY_MS = 1000 * 60 * 10;
+
+    private final long initialDelayMs;
+    private final long startIntervalMs;
+    private final long minIntervalMs;
+    private final long maxIntervalMs;
+    private final Map<String, AccountState> states = new ConcurrentHashMap<>();
+    private final Map<String, PollState> polls = new ConcurrentHashMap<>();
+
+    public AccountScheduler(long initialDelayMs) {
+        this(initialDelayMs, 0, 0, 0);
+    }
+
+    public AccountScheduler(long initialDelayMs, long startIntervalMs, long minIntervalMs, long maxIntervalMs) {
+        this.initialDelayMs = initialDelayMs;
+        this.minIntervalMs = minIntervalMs;
+        this.maxIntervalMs = Math.max(minIntervalMs, maxIntervalMs);
+        this.startIntervalMs = Math.min(Math.max(startIntervalMs, this.minIntervalMs), this.maxIntervalMs);
+    }
+
+    public static class AccountState {
+        public final long nextEligibleMillis;
+        public final long delayMs;
+        public final int failures;
+
+        public AccountState(long nextEligibleMillis, long delayMs, int failures) {
+            this.nextEligibleMillis = nextEligibleMillis;
+            this.delayMs = delayMs;
+            this.failures = failures;
+        }
+    }
+
+    public static class PollState {
+        public final long nextPollMillis;
+        public final long intervalMs;
+        public final long lastActivityMillis;
+
+        public PollState(long nextPollMillis, long intervalMs, long lastActivityMillis) {
+            this.nextPollMillis = nextPollMillis;
+            this.intervalMs = intervalMs;
+            this.lastActivityMillis = lastActivityMillis;
+        }
+    }
+
+    public boolean isEligible(String account, long nowMillis) {
+        AccountState state = states.get(account);
+        return state == null || state.nextEligibleMillis <= nowMillis;
+    }
+
+    public void recordSuccess(String account) {
+        states.remove(account);
+    }
+
+    public AccountState recordFailure(String account, long nowMillis) {
+        return states.compute(account, (k, prev) -> {
+            long delay = prev == null ? initialDelayMs : Math.min(prev.delayMs * 2, MAX_DELAY_MS);
+            int failures = prev == null ? 1 : prev.failures + 1;
+            return new AccountState(nowMillis + delay, delay, failures);
+        });
+    }
+
+    /**
+     * @return true if the account's poll interval has passed since it was last polled
+     */
+    public boolean isPollDue(String account, long nowMillis) {
+        PollState state = polls.get(account);
+        // polls are started on ticks of the minimum interval, half a tick of slack absorbs their jitter
+        return state == null || state.nextPollMillis - minIntervalMs / 2 <= nowMillis;
+    }
+
+    /**
+     * Record a completed poll and how many emails it moved
+     */
+    public PollState recordPoll(String account, int moved, long nowMillis) {
+        return polls.compute(account, (k, prev) -> {
+            long interval = moved > 0 ? minIntervalMs :
+                    prev == null ? startIntervalMs : Math.min(Math.max(prev.intervalMs * 2, minIntervalMs), maxIntervalMs);
+            long lastActivity = moved > 0 ? nowMillis : prev == null ? 0 : prev.lastActivityMillis;
+            return new PollState(nowMillis + interval, interval, lastActivity);
+        });
+    }
+
+    public void remove(String account) {
+        states.remove(account);
+        polls.remove(account);
+    }
+}
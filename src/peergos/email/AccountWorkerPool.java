@@ -0,0 +1,83 @@
+package peergos.email;
+
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ Runs per-account jobs in parallel. At most one job per key is in flight at any time,
+ so a slow mail server only holds up its own account.
+ */
+public class AccountWorkerPool {
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger running = new AtomicInteger();
+
+    public AccountWorkerPool(int concurrency, boolean useVirtualThreads) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Worker concurrency must be at least 1");
+        }
+        this.permits = new Semaphore(concurrency);
+        this.executor = useVirtualThreads ?
+                buildVirtualThreadExecutor().orElseGet(() -> buildThreadPool(concurrency)) :
+                buildThreadPool(concurrency);
+        Metrics.gauge("worker_jobs_queued", "Account jobs submitted and waiting for a worker",
+                () -> inFlight.size() - running.get());
+        Metrics.gauge("worker_jobs_running", "Account jobs being processed", running::get);
+    }
+
+    private static ExecutorService buildThreadPool(int concurrency) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "account-worker-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // we compile against Java 11, so virtual threads are looked up at runtime
+    private static Optional<ExecutorService> buildVirtualThreadExecutor() {
+        try {
+            Object executor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            return Optional.of((ExecutorService) executor);
+        } catch (Exception e) {
+            System.err.println("Virtual threads not available in this JVM, using platform threads");
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return empty if a job with the same key is still running
+     */
+    public Optional<CompletableFuture<Void>> submit(String key, Runnable job) {
+        if (!inFlight.add(key)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(CompletableFuture.runAsync(() -> {
+                try {
+                    permits.acquireUninterruptibly();
+                    running.incrementAndGet();
+                    try {
+                        job.run();
+                    } finally {
+                        running.decrementAndGet();
+                        permits.release();
+                    }
+                } finally {
+                    inFlight.remove(key);
+                }
+            }, executor));
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key);
+            return Optional.empty();
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
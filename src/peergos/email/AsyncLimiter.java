@@ -0,0 +1,66 @@
+package peergos.email;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/*
+ Starts asynchronous operations with at most a fixed number in flight. The rest are queued and started,
+ in submission order, as earlier ones complete. No thread is blocked while waiting.
+ */
+public class AsyncLimiter {
+
+    private final int maxInFlight;
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private int inFlight = 0;
+
+    public AsyncLimiter(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public synchronized int queued() {
+        return waiting.size();
+    }
+
+    public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> operation) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        Runnable start = () -> {
+            CompletableFuture<T> op;
+            try {
+                op = operation.get();
+            } catch (Throwable t) {
+                op = CompletableFuture.failedFuture(t);
+            }
+            op.whenComplete((value, err) -> {
+                if (err != null) {
+                    res.completeExceptionally(err);
+                } else {
+                    res.complete(value);
+                }
+                next();
+            });
+        };
+        synchronized (this) {
+            if (inFlight >= maxInFlight) {
+                waiting.add(start);
+                return res;
+            }
+            inFlight++;
+        }
+        start.run();
+        return res;
+    }
+
+    private void next() {
+        Runnable start;
+        synchronized (this) {
+            start = waiting.poll();
+            if (start == null) {
+                inFlight--;
+                return;
+            }
+        }
+        start.run();
+    }
+}
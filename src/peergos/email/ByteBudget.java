@@ -0,0 +1,47 @@
+package peergos.email;
+
+/*
+ Bounds the number of bytes held in memory by work in flight. A request larger than the whole budget waits
+ until nothing else is in flight and then runs on its own.
+ */
+public class ByteBudget {
+
+    private final long maxBytes;
+    private long available;
+
+    public ByteBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.available = maxBytes;
+    }
+
+    /**
+     * Block until the bytes can be reserved
+     * @return the amount reserved, to be passed to release()
+     */
+    public synchronized long acquire(long bytes) {
+        long reserved = Math.max(0, Math.min(bytes, maxBytes));
+        while (available < reserved) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for " + bytes + " bytes", e);
+            }
+        }
+        available -= reserved;
+        return reserved;
+    }
+
+    public synchronized void release(long reserved) {
+        available += reserved;
+        notifyAll();
+    }
+
+    public synchronized long available() {
+        return available;
+    }
+
+    public synchronized long reserved() {
+        return maxBytes - available;
+    }
+}
@@ -0,0 +1,49 @@
+package peergos.email;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/*
+ Maps accounts onto nodes so that a node joining or leaving only moves the accounts next to it on the ring.
+ */
+public class ConsistentHashRing {
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final Set<String> nodes;
+
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        this.nodes = Collections.unmodifiableSet(new TreeSet<>(nodes));
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    public Set<String> nodes() {
+        return nodes;
+    }
+
+    public Optional<String> owner(String key) {
+        if (ring.isEmpty()) {
+            return Optional.empty();
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return Optional.of(entry != null ? entry.getValue() : ring.firstEntry().getValue());
+    }
+
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            long res = 0;
+            for (int i = 0; i < 8; i++) {
+                res = (res << 8) | (digest[i] & 0xff);
+            }
+            return res;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -5,7 +5,6 @@ import peergos.server.Main;
 import peergos.server.apps.email.EmailBridgeClient;
 import peergos.shared.Crypto;
 import peergos.shared.NetworkAccess;
-import peergos.shared.io.ipfs.api.JSONParser;
 import peergos.shared.login.mfa.MultiFactorAuthRequest;
 import peergos.shared.login.mfa.MultiFactorAuthResponse;
 import peergos.shared.user.UserContext;
@@ -16,21 +15,28 @@ import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
-import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 public class EmailBridge {
 
     private final EmailSender sender;
     private final EmailRetriever retriever;
     private final int defaultDelayOnFailureMs = 1000;
+    private static final String IMAP_SYNC_STATE_FILENAME = "imap-sync-state.txt";
+    private static final String LEGACY_SEND_JOURNAL_FILENAME = "send-journal.txt";
+    private static final String SEND_JOURNAL_DIRNAME = "send-journal";
     public EmailBridge(EmailSender sender, EmailRetriever retriever) {
         this.sender = sender;
         this.retriever = retriever;
@@ -38,7 +44,7 @@ public class EmailBridge {
 
     public static EmailBridge build(String username, String password, String url, boolean isPublicServer
             , String smtpHost, int smtpPort
-            , String imapHost, int imapPort) throws Exception{
+            , String imapHost, int imapPort, Properties config, Path stateDir) throws Exception{
         Crypto crypto = Builder.initCrypto();
         NetworkAccess network = null;
         try {
@@ -49,42 +55,94 @@ public class EmailBridge {
 
         UserContext context = UserContext.signIn(username, password, Main::getMfaResponseCLI, network, crypto).get();
 
-        SMTPMailer smtpMailer = new SMTPMailer(smtpHost, smtpPort);
-        EmailSender sender = new EmailSender(smtpMailer, context);
-        IMAPClient imapClient = new IMAPClient(imapHost, imapPort);
+        SMTPMailer smtpMailer = new SMTPMailer(smtpHost, smtpPort, getIntProperty(config, "smtpMaxConnectionsPerAccount", 1),
+                getIntProperty(config, "smtpConnectionIdleTimeoutSeconds", 60));
+        // shared so the sender and the retriever resolve each user's directories once between them
+        AccountDirectoryCache cache = new AccountDirectoryCache(context);
+        EmailSender sender = new EmailSender(smtpMailer, context, cache, getIntProperty(config, "attachmentReadConcurrency", 8),
+                getIntProperty(config, "socialStateMaxStalenessSeconds", 60) * 1000L,
+                Optional.of(sendJournalDir(config, stateDir)));
+        IMAPClient imapClient = new IMAPClient(imapHost, imapPort, getIntProperty(config, "imapMaxConnections", 50),
+                getIntProperty(config, "imapMaxIdleConnectionsPerAccount", 1),
+                getIntProperty(config, "imapConnectionIdleTimeoutSeconds", 300),
+                new IMAPSyncState(Optional.of(stateDir.resolve(stateFilename(config, IMAP_SYNC_STATE_FILENAME)))),
+                getIntProperty(config, "imapFetchWindowSize", 50),
+                getIntProperty(config, "imapFetchWindowMegabytes", 16) * 1024L * 1024L,
+                getIntProperty(config, "imapReceiveBudgetMegabytes", 64) * 1024L * 1024L);
 
-        EmailRetriever retriever = new EmailRetriever(imapClient, context);
+        EmailRetriever retriever = new EmailRetriever(imapClient, context, cache,
+                getIntProperty(config, "attachmentUploadThreads", 4),
+                getIntProperty(config, "attachmentUploadBudgetMegabytes", 64) * 1024L * 1024L);
         return new EmailBridge(sender, retriever);
     }
 
-    private static Map<String, Map<String, String>> readEmailAccountFile(Path emailAccountsFilePath) {
-        Map<String, Map<String, String>> accounts = new HashMap<>();
+    // each cluster node on a machine keeps its own state files, an account that moves node just lists its Inbox again
+    private static String stateFilename(Properties config, String filename) {
+        String nodeId = config.getProperty("clusterNodeId");
+        return nodeId == null ? filename : filename.replace(".txt", "-" + nodeId.trim() + ".txt");
+    }
+
+    /*
+     In cluster mode the journals are kept next to the leases, so whichever node next holds an account's lease finds
+     the emails the previous holder had in flight.
+     */
+    private static Path sendJournalDir(Properties config, Path stateDir) {
+        String leaseDir = config.getProperty("clusterLeaseDir");
+        Path dir = config.getProperty("clusterNodeId") != null && leaseDir != null ?
+                Paths.get(leaseDir.trim()).resolve(SEND_JOURNAL_DIRNAME) :
+                stateDir.resolve(SEND_JOURNAL_DIRNAME);
         try {
-            if (! emailAccountsFilePath.toFile().exists())
-                return Collections.emptyMap();
-            byte[] data = Files.readAllBytes(emailAccountsFilePath);
-            List<Map<String, String>> props = (List<Map<String, String>>) JSONParser.parse(new String(data));
-            List<String> fields = Arrays.asList("username", "emailAddress", "smtpUsername", "smtpPassword", "imapUsername", "imapPassword");
-            for(Map<String, String> record : props) {
-                boolean isValid = true;
-                for (String field : fields) {
-                    if (record.get(field) == null) {
-                        System.err.println("Field:" + field + " not found");
-                        isValid = false;
-                    }
-                }
-                if (isValid) {
-                    accounts.put(record.get("emailAddress"), record);
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create send journal directory: " + dir, e);
+        }
+        migrateSendJournal(stateDir.resolve(stateFilename(config, LEGACY_SEND_JOURNAL_FILENAME)), dir);
+        return dir;
+    }
+
+    // splits a journal kept by an earlier version for the whole node into one journal per account
+    private static void migrateSendJournal(Path legacy, Path dir) {
+        if (!legacy.toFile().exists()) {
+            return;
+        }
+        SendJournal old = new SendJournal(Optional.of(legacy));
+        for (SendJournal.Entry entry : old.inFlight()) {
+            SendJournal journal = new SendJournal(Optional.of(dir.resolve(SendJournal.filename(entry.from))));
+            if (journal.get(entry.username, entry.filename).isEmpty()) {
+                SendJournal.Entry claimed = journal.claim(entry.username, entry.filename, entry.from, entry.msgId,
+                        entry.created);
+                if (entry.sent) {
+                    journal.sent(claimed);
                 }
             }
-        } catch (Exception ioe) {
-            ioe.printStackTrace();
-            throw new IllegalStateException(ioe.getMessage(), ioe);
+            journal.shutdown();
         }
-        return accounts;
+        old.shutdown();
+        try {
+            Files.deleteIfExists(legacy);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println(LocalDateTime.now() + " Moved send journal " + legacy + " to " + dir);
     }
 
-    private static Properties readConfigFile(Path emailBridgeConfigFilePath) {
+    private static Optional<ShardCoordinator> buildShardCoordinator(Properties config) {
+        String nodeId = config.getProperty("clusterNodeId");
+        if (nodeId == null) {
+            return Optional.empty();
+        }
+        String leaseDir = config.getProperty("clusterLeaseDir");
+        if (leaseDir == null) {
+            System.err.println("Field:clusterLeaseDir not found");
+            throw new IllegalStateException("Email-Bridge config file invalid");
+        }
+        LeaseBackend backend = new FileLeaseBackend(Paths.get(leaseDir.trim()));
+        return Optional.of(new ShardCoordinator(nodeId.trim(), backend,
+                getIntProperty(config, "clusterLeaseTtlSeconds", 60) * 1000L,
+                getIntProperty(config, "clusterVirtualNodes", 100)));
+    }
+
+    public static Properties readConfigFile(Path emailBridgeConfigFilePath) {
         Properties props = new Properties();
         if (! emailBridgeConfigFilePath.toFile().exists())
             return props;
@@ -109,29 +167,39 @@ public class EmailBridge {
         return props;
     }
 
-    public void start(Path configFilePath, Path emailAccountsFilePath) {
-        Properties config = readConfigFile(configFilePath);
-
-        SendTask send = new SendTask(config, emailAccountsFilePath);
-        //send.run();
-        ReceiveTask receive = new ReceiveTask(config, emailAccountsFilePath);
-        //receive.run();
+    private static int getIntProperty(Properties config, String field, int defaultValue) {
+        String value = config.getProperty(field);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            System.err.println("Field:" + field + " value not valid");
+            throw new IllegalStateException("Email-Bridge config file value for " + field + " is invalid");
+        }
+    }
 
-        Function<Void, Void> shutdownRequest = s -> {
-            System.out.println("Shutdown request received !");
-            send.requestShutdown().join();
-            receive.requestShutdown().join();
-            System.out.println("Shutdown request completed !");
-            return null;
-        };
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            shutdownRequest.apply(null);
-        }));
+    private static Optional<MetricsServer> startMetricsServer(Properties config) {
+        int port = getIntProperty(config, "metricsPort", 0);
+        if (port == 0) {
+            return Optional.empty();
+        }
+        String bindAddress = config.getProperty("metricsBindAddress", "127.0.0.1").trim();
+        try {
+            MetricsServer server = new MetricsServer(bindAddress, port);
+            server.start();
+            System.out.println(LocalDateTime.now() + " Serving metrics on http://" + bindAddress + ":" + port + "/metrics");
+            return Optional.of(server);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to serve metrics on " + bindAddress + ":" + port, e);
+        }
+    }
 
+    public void start(Properties config, Path emailAccountsFilePath) {
         ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
-        executor.scheduleAtFixedRate(send, 0L, Integer.parseInt(config.getProperty("sendIntervalSeconds")), TimeUnit.SECONDS);
-        executor.scheduleAtFixedRate(receive, Integer.parseInt(config.getProperty("receiveInitialDelaySeconds")),
-                Integer.parseInt(config.getProperty("receiveIntervalSeconds")), TimeUnit.SECONDS);
+        Runnable shutdownRequest = startTasks(config, emailAccountsFilePath, executor);
+        Runtime.getRuntime().addShutdownHook(new Thread(shutdownRequest));
         try {
             executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
         } catch (InterruptedException e) {
@@ -140,121 +208,348 @@ public class EmailBridge {
         executor.shutdown();
     }
 
+    /**
+     * Schedule the send and receive tasks on the executor and return straight away
+     * @return stops the tasks, waits for the jobs in flight and closes everything the bridge holds open
+     */
+    public Runnable startTasks(Properties config, Path emailAccountsFilePath, ScheduledExecutorService executor) {
+
+        AccountWorkerPool workers = new AccountWorkerPool(getIntProperty(config, "workerThreads", 4),
+                Boolean.parseBoolean(config.getProperty("useVirtualThreads", "false")));
+        AccountRegistry registry = new AccountRegistry(emailAccountsFilePath);
+        Optional<ShardCoordinator> shard = buildShardCoordinator(config);
+        shard.ifPresent(ShardCoordinator::start);
+        SendTask send = new SendTask(config, registry, workers, shard);
+        //send.run();
+        ReceiveTask receive = new ReceiveTask(config, registry, workers, shard);
+        //receive.run();
+        registry.addListener(send::accountsChanged);
+        registry.addListener(receive::accountsChanged);
+        registry.startWatching();
+        Optional<MetricsServer> metrics = startMetricsServer(config);
+
+        // the tasks tick at the shortest interval, each account is only polled once its own interval has passed
+        executor.scheduleAtFixedRate(send, 0L, send.tickSeconds, TimeUnit.SECONDS);
+        executor.scheduleAtFixedRate(receive, Integer.parseInt(config.getProperty("receiveInitialDelaySeconds")),
+                receive.tickSeconds, TimeUnit.SECONDS);
+
+        return () -> {
+            System.out.println("Shutdown request received !");
+            send.requestShutdown().join();
+            receive.requestShutdown().join();
+            registry.shutdown();
+            workers.shutdown();
+            shard.ifPresent(ShardCoordinator::shutdown);
+            retriever.shutdown();
+            sender.shutdown();
+            metrics.ifPresent(MetricsServer::shutdown);
+            System.out.println("Shutdown request completed !");
+        };
+    }
+
     abstract class Task implements Runnable {
-        protected final Path pathToAccountsFile;
+        protected final AccountRegistry registry;
         protected final Properties config;
+        protected final AccountWorkerPool workers;
+        protected final Optional<ShardCoordinator> shard;
+        protected final AccountScheduler scheduler;
+        protected final int tickSeconds;
+        private final Metrics.Histogram cycleTime;
+        private final Metrics.Histogram accountTime;
+        private final Metrics.Counter backOffs;
 
         protected volatile CompletableFuture<Boolean> shutdownFuture = Futures.incomplete();
         protected volatile boolean shutdownRequested = false;
         protected volatile boolean running = false;
+        private final Set<CompletableFuture<Void>> inFlightJobs = ConcurrentHashMap.newKeySet();
 
-        public Task(Properties config, Path pathToAccountsFile) {
+        public Task(Properties config, AccountRegistry registry, AccountWorkerPool workers, Optional<ShardCoordinator> shard,
+                    String intervalPrefix, int defaultMaxIntervalFactor) {
+            int interval = Integer.parseInt(config.getProperty(intervalPrefix + "IntervalSeconds"));
+            int minInterval = getIntProperty(config, intervalPrefix + "MinIntervalSeconds", interval);
+            int maxInterval = getIntProperty(config, intervalPrefix + "MaxIntervalSeconds", interval * defaultMaxIntervalFactor);
+            this.tickSeconds = Math.max(1, minInterval);
+            this.scheduler = new AccountScheduler(defaultDelayOnFailureMs, interval * 1000L, minInterval * 1000L,
+                    maxInterval * 1000L);
+            this.cycleTime = Metrics.histogram(intervalPrefix + "_cycle_seconds",
+                    "Time from the start of a " + intervalPrefix + " cycle until all of its account jobs have finished");
+            this.accountTime = Metrics.histogram(intervalPrefix + "_account_seconds",
+                    "Time spent on one account in a " + intervalPrefix + " cycle");
+            this.backOffs = Metrics.counter(intervalPrefix + "_backoffs_total",
+                    "Accounts backed off after a failed " + intervalPrefix + " job");
             this.config = config;
-            this.pathToAccountsFile = pathToAccountsFile;
+            this.registry = registry;
+            this.workers = workers;
+            this.shard = shard;
         }
-        public abstract void run();
 
-        public CompletableFuture<Boolean> requestShutdown() {
-            shutdownRequested = true;
-            if (!running) {
-                shutdownFuture.complete(true);
-            }
-            return shutdownFuture;
-        }
-    }
+        protected abstract String name();
 
-    class SendTask extends Task {
-        public SendTask(Properties config, Path pathToAccountsFile) {
-            super(config, pathToAccountsFile);
-        }
+        /**
+         * @param moved to be incremented for each email sent or received
+         * @param leaseHeld checked before each change on the mail server, the job stops if it returns false
+         * @return false if the account should be backed off
+         */
+        protected abstract boolean process(Map<String, String> props, AtomicInteger moved, BooleanSupplier leaseHeld);
+
+        /*
+         Dispatches the accounts that are due and returns without waiting for their jobs. A slow account keeps its job
+         in flight across ticks, and the worker pool skips it until that job is done, while everyone else carries on.
+         */
         @Override
         public void run() {
             if (running) {
-                System.out.println(LocalDateTime.now() + " Skipping Task SendTask as previous run has yet to complete");
+                System.out.println(LocalDateTime.now() + " Skipping Task " + name() + " as previous run has yet to complete");
                 return;
             }
             running = true;
-            sender.refresh();
+            try {
+                long cycleStart = System.nanoTime();
+                Map<String, Map<String, String>> accounts = registry.accounts();
+                prepare(accounts);
+                System.out.println(LocalDateTime.now() + " Running Task " + name() + ". Accounts: " + accounts.size());
+                List<CompletableFuture<Void>> jobs = new ArrayList<>();
+                long now = System.currentTimeMillis();
+                for (Map.Entry<String, Map<String, String>> entry : accounts.entrySet()) {
+                    if (shutdownRequested) {
+                        break;
+                    }
+                    if (scheduler.isPollDue(entry.getKey(), now) && isDue(entry.getKey(), now)) {
+                        dispatch(entry.getKey(), entry.getValue()).ifPresent(jobs::add);
+                    }
+                }
+                CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0]))
+                        .whenComplete((r, t) -> cycleTime.observeSince(cycleStart));
+                System.out.println(LocalDateTime.now() + " Dispatched Task " + name() + ". Jobs: " + jobs.size());
+            } finally {
+                running = false;
+                if (shutdownRequested) {
+                    completeShutdownWhenIdle();
+                }
+            }
+        }
 
-            Map<String, Map<String, String>> accounts = readEmailAccountFile(pathToAccountsFile);
-            System.out.println(LocalDateTime.now() + " Running Task SendTask. Accounts: " + accounts.size());
-            int delayMs = defaultDelayOnFailureMs;
-            for (Map.Entry<String, Map<String, String>> entry : accounts.entrySet()) {
+        /**
+         * @return empty if the account is backing off, already has a job in flight or is served by another node
+         */
+        protected Optional<CompletableFuture<Void>> dispatch(String account, Map<String, String> props) {
+            long started = System.currentTimeMillis();
+            if (!scheduler.isEligible(account, started)) {
+                return Optional.empty();
+            }
+            if (shard.isPresent() && !shard.get().claim(account)) {
+                return Optional.empty();
+            }
+            BooleanSupplier leaseHeld = () -> shard.isEmpty() || shard.get().holds(account);
+            Optional<CompletableFuture<Void>> job = workers.submit(name() + ":" + account, () -> {
+                if (shutdownRequested) {
+                    return;
+                }
+                long jobStart = System.nanoTime();
                 try {
-                    Map<String, String> props = entry.getValue();
-                    if (sender.sendEmails(props.get("username"), props.get("emailAddress"),
-                            props.get("smtpUsername"), props.get("smtpPassword"))) {
-                        delayMs = defaultDelayOnFailureMs;
+                    AtomicInteger moved = new AtomicInteger();
+                    if (process(props, moved, leaseHeld)) {
+                        scheduler.recordSuccess(account);
+                        scheduler.recordPoll(account, moved.get(), started);
                     } else {
-                        delayMs = backOff(delayMs);
+                        onFailure(props);
+                        backOff(account);
                     }
                 } catch (Throwable t) {
                     t.printStackTrace();
-                    delayMs = backOff(delayMs);
-                }
-                if (shutdownRequested) {
-                    shutdownFuture.complete(true);
-                    return;
+                    onFailure(props);
+                    backOff(account);
+                } finally {
+                    accountTime.observeSince(jobStart);
                 }
+            });
+            if (job.isEmpty()) {
+                shard.ifPresent(s -> s.done(account));
+                return Optional.empty();
+            }
+            CompletableFuture<Void> tracked = job.get()
+                    .whenComplete((r, t) -> shard.ifPresent(s -> s.done(account)))
+                    .thenRun(() -> afterJob(account, props));
+            inFlightJobs.add(tracked);
+            tracked.whenComplete((r, t) -> inFlightJobs.remove(tracked));
+            return Optional.of(tracked);
+        }
+
+        protected void prepare(Map<String, Map<String, String>> accounts) {
+        }
+
+        protected boolean isDue(String account, long nowMillis) {
+            return true;
+        }
+
+        protected void afterJob(String account, Map<String, String> props) {
+        }
+
+        // jobs already in flight keep the record they were given, only per-account state is dropped here
+        protected void accountsChanged(AccountRegistry.Diff diff) {
+            diff.removed.forEach(scheduler::remove);
+            diff.changed.forEach(scheduler::remove);
+        }
+
+        /**
+         * Called after a job for the account has failed, before it is backed off
+         */
+        protected void onFailure(Map<String, String> props) {
+        }
+
+        private void backOff(String account) {
+            backOffs.inc();
+            AccountScheduler.AccountState state = scheduler.recordFailure(account, System.currentTimeMillis());
+            System.out.println(LocalDateTime.now() + " " + name() + " backing off account: " + account + " for:"
+                    + state.delayMs + " ms after " + state.failures + " failure(s)");
+        }
+
+        public CompletableFuture<Boolean> requestShutdown() {
+            shutdownRequested = true;
+            if (!running) {
+                completeShutdownWhenIdle();
             }
-            System.out.println(LocalDateTime.now() + " Finished Task SendTask.");
-            running = false;
+            return shutdownFuture;
+        }
+
+        private void completeShutdownWhenIdle() {
+            CompletableFuture.allOf(inFlightJobs.toArray(new CompletableFuture<?>[0]))
+                    .whenComplete((r, t) -> shutdownFuture.complete(true));
+        }
+    }
+
+    class SendTask extends Task {
+        public SendTask(Properties config, AccountRegistry registry, AccountWorkerPool workers, Optional<ShardCoordinator> shard) {
+            // an idle outbox is cheap to check, so sending does not slow down unless configured to
+            super(config, registry, workers, shard, "send", 1);
+        }
+
+        @Override
+        protected String name() {
+            return "SendTask";
+        }
+
+        @Override
+        protected void prepare(Map<String, Map<String, String>> accounts) {
+            sender.refresh(accounts.values().stream()
+                    .map(props -> props.get("username"))
+                    .collect(Collectors.toSet()));
+        }
+
+        @Override
+        protected void onFailure(Map<String, String> props) {
+            sender.invalidate(props.get("username"));
+        }
+
+        @Override
+        protected boolean process(Map<String, String> props, AtomicInteger moved, BooleanSupplier leaseHeld) {
+            return sender.sendEmails(props.get("username"), props.get("emailAddress"),
+                    props.get("smtpUsername"), props.get("smtpPassword"), moved, leaseHeld);
         }
     }
     class ReceiveTask extends Task {
         private final Random random = new Random();
+        private final Optional<IMAPIdleManager> idle;
+        private final long fallbackPollMs;
+        private final Map<String, Long> lastPolled = new ConcurrentHashMap<>();
+        private final Set<String> notified = ConcurrentHashMap.newKeySet();
 
-        public ReceiveTask(Properties config, Path pathToAccountsFile) {
-            super(config, pathToAccountsFile);
+        public ReceiveTask(Properties config, AccountRegistry registry, AccountWorkerPool workers, Optional<ShardCoordinator> shard) {
+            super(config, registry, workers, shard, "receive", 10);
+            boolean useIdle = Boolean.parseBoolean(config.getProperty("imapIdle", "false"));
+            this.idle = useIdle ?
+                    Optional.of(new IMAPIdleManager(retriever, getIntProperty(config, "imapIdleKeepAliveSeconds", 300))) :
+                    Optional.empty();
+            this.fallbackPollMs = getIntProperty(config, "imapIdleFallbackPollSeconds", 600) * 1000L;
         }
+
         @Override
-        public void run() {
-            if (running) {
-                System.out.println(LocalDateTime.now() + " Skipping Task ReceiveTask as previous run has yet to complete");
+        protected String name() {
+            return "ReceiveTask";
+        }
+
+        @Override
+        protected void prepare(Map<String, Map<String, String>> accounts) {
+            if (idle.isEmpty() || shutdownRequested) {
                 return;
             }
-            running = true;
-            Map<String, Map<String, String>> accounts = readEmailAccountFile(pathToAccountsFile);
-            System.out.println(LocalDateTime.now() + " Running Task ReceiveTask. Accounts: " + accounts.size());
-            int delayMs = defaultDelayOnFailureMs;
-            for(Map.Entry<String, Map<String, String>> entry : accounts.entrySet()) {
-                try {
-                    String emailAddress = entry.getKey();
-                    String domain = emailAddress.substring(emailAddress.indexOf("@") + 1);
-                    Supplier<String> messageIdSupplier = () -> "<" + Math.abs(random.nextInt(Integer.MAX_VALUE - 1))
-                            + "." + Math.abs(random.nextInt(Integer.MAX_VALUE - 1)) + "@" + domain + ">";
-                    Map<String, String> props = entry.getValue();
-                    int maxNumberOfUnreadEmails = Integer.parseInt(config.getProperty("maxNumberOfUnreadEmails"));
-                    boolean ok = retriever.retrieveEmailsFromServer(props.get("username"), props.get("emailAddress"),
-                            messageIdSupplier, props.get("imapUsername"), props.get("imapPassword"), maxNumberOfUnreadEmails);
-                    if (ok) {
-                        delayMs = defaultDelayOnFailureMs;
-                    } else {
-                        delayMs = backOff(delayMs);
-                    }
-                } catch (Throwable t) {
-                    t.printStackTrace();
-                    delayMs = backOff(delayMs);
-                }
-                if (shutdownRequested) {
-                    shutdownFuture.complete(true);
-                    return;
+            // in cluster mode only the accounts placed on this node are watched
+            Set<String> watched = accounts.keySet().stream()
+                    .filter(a -> shard.isEmpty() || shard.get().isAssigned(a))
+                    .collect(Collectors.toSet());
+            idle.get().retainOnly(watched);
+            for (Map.Entry<String, Map<String, String>> entry : accounts.entrySet()) {
+                String account = entry.getKey();
+                if (!watched.contains(account)) {
+                    continue;
                 }
+                Map<String, String> props = entry.getValue();
+                idle.get().watch(account, props.get("imapUsername"), props.get("imapPassword"),
+                        () -> onNewMail(account, props));
             }
-            System.out.println(LocalDateTime.now() + " Finished Task ReceiveTask.");
-            running = false;
         }
-    }
-    public int backOff(int delay) {
-        try {
-            System.out.println(LocalDateTime.now() + " Backing off for:" + delay + " ms");
-            Thread.sleep(delay);
-        } catch (InterruptedException ie) {
-        }
-        if (delay >= 1000 * 60 * 10) {
-            return delay;
-        } else {
-            return delay * 2;
+
+        // changed credentials need a new IDLE session, prepare() opens it on the next run
+        @Override
+        protected void accountsChanged(AccountRegistry.Diff diff) {
+            super.accountsChanged(diff);
+            for (String account : diff.removed) {
+                idle.ifPresent(i -> i.stop(account));
+                lastPolled.remove(account);
+                notified.remove(account);
+            }
+            diff.changed.forEach(account -> idle.ifPresent(i -> i.stop(account)));
+        }
+
+        // accounts with a live IDLE session are only polled as a fallback, or when a notification is pending
+        @Override
+        protected boolean isDue(String account, long nowMillis) {
+            if (idle.isEmpty() || !idle.get().isConnected(account) || notified.contains(account)) {
+                return true;
+            }
+            Long last = lastPolled.get(account);
+            return last == null || nowMillis - last >= fallbackPollMs;
+        }
+
+        private void onNewMail(String account, Map<String, String> props) {
+            if (shutdownRequested) {
+                return;
+            }
+            notified.add(account);
+            dispatch(account, props);
+        }
+
+        // mail that was announced while the account was busy is picked up straight away
+        @Override
+        protected void afterJob(String account, Map<String, String> props) {
+            if (notified.contains(account)) {
+                onNewMail(account, props);
+            }
+        }
+
+        @Override
+        protected void onFailure(Map<String, String> props) {
+            retriever.invalidate(props.get("username"));
+        }
+
+        @Override
+        protected boolean process(Map<String, String> props, AtomicInteger moved, BooleanSupplier leaseHeld) {
+            String emailAddress = props.get("emailAddress");
+            notified.remove(emailAddress);
+            lastPolled.put(emailAddress, System.currentTimeMillis());
+            String domain = emailAddress.substring(emailAddress.indexOf("@") + 1);
+            Supplier<String> messageIdSupplier = () -> "<" + Math.abs(random.nextInt(Integer.MAX_VALUE - 1))
+                    + "." + Math.abs(random.nextInt(Integer.MAX_VALUE - 1)) + "@" + domain + ">";
+            int maxNumberOfUnreadEmails = Integer.parseInt(config.getProperty("maxNumberOfUnreadEmails"));
+            return retriever.retrieveEmailsFromServer(props.get("username"), emailAddress,
+                    messageIdSupplier, props.get("imapUsername"), props.get("imapPassword"), maxNumberOfUnreadEmails, moved,
+                    leaseHeld);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> requestShutdown() {
+            idle.ifPresent(IMAPIdleManager::shutdown);
+            return super.requestShutdown();
         }
     }
 }
@@ -10,8 +10,11 @@ import peergos.shared.util.Pair;
 
 import javax.activation.DataSource;
 import javax.mail.Message;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimePart;
 import javax.mail.internet.MimeMessage;
-import javax.mail.util.ByteArrayDataSource;
 import java.io.*;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -21,49 +24,40 @@ import java.util.stream.Collectors;
 
 public class EmailConverter {
 
-    public static Pair<EmailMessage, List<RawAttachment>> parseMail(MimeMessage message, Supplier<String> messageIdSupplier) {
+    private static final Metrics.Histogram parseTime = Metrics.histogram("parse_seconds",
+            "Time to parse one received MIME message");
 
-        MimeMessageParser messageParser = new MimeMessageParser();
-        MimeMessageParser.ParsedMimeMessageComponents components = messageParser.parseMimeMessage(message);
-        String from = components.getFromAddress().getAddress();
-        String subject = components.getSubject();
-        List<String> toAddrs = components.getToAddresses().stream().map(a -> a.getAddress()).collect(Collectors.toList());
-        List<String> ccAddrs = components.getCcAddresses().stream().map(a -> a.getAddress()).collect(Collectors.toList());
+    public static Pair<EmailMessage, List<RawAttachment>> parseMail(MimeMessage message, Supplier<String> messageIdSupplier) {
+        long start = System.nanoTime();
+        String from = MimeMessageParser.parseFromAddress(message).getAddress();
+        String subject = MimeMessageParser.parseSubject(message);
+        List<String> toAddrs = MimeMessageParser.parseToAddresses(message).stream().map(a -> a.getAddress()).collect(Collectors.toList());
+        List<String> ccAddrs = MimeMessageParser.parseCcAddresses(message).stream().map(a -> a.getAddress()).collect(Collectors.toList());
 
-        String plainText = components.getPlainContent();
-        String messageId = components.getMessageId();
+        String messageId = MimeMessageParser.parseMessageId(message);
         String msgId = messageId == null ? messageIdSupplier.get() : messageId;
 
-        Date sentDate = components.getSentDate();
+        Date sentDate = MimeMessageParser.parseSentDate(message);
         LocalDateTime created = LocalDateTime.ofInstant(sentDate.toInstant(), ZoneId.of("UTC"));
 
+        ParsedParts components = new ParsedParts();
+        parsePartTree(message, components);
+        String plainText = components.plainContent == null ? null : components.plainContent.toString();
+
         List<RawAttachment> rawAttachmentList = new ArrayList<>();
-        for(Map.Entry<String, DataSource> attachment : components.getAttachmentList().entrySet()) {
-            DataSource source = attachment.getValue();
+        List<MimePart> attachmentParts = new ArrayList<>(components.attachments);
+        attachmentParts.addAll(components.embedded);
+        for(MimePart part : attachmentParts) {
             try {
-                String type = source.getContentType();
-                String name = source.getName();
-                String resName = attachment.getKey();
-                byte[] data = readResource(source.getInputStream());
-                rawAttachmentList.add(new RawAttachment(resName, data.length, type, data));
-            } catch(Exception e) {
-                e.printStackTrace();
-            }
-        }
-        //now embedded attachments
-        for(Map.Entry<String, DataSource> embeddedAttachments : components.getCidMap().entrySet()) {
-            DataSource source = embeddedAttachments.getValue();
-            try {
-                String type = source.getContentType();
-                String name = source.getName();
-                byte[] data = readResource(source.getInputStream());
-                rawAttachmentList.add(new RawAttachment(name, data.length, type, data));
+                DataSource source = MimeMessageParser.retrieveDataHandler(part).getDataSource();
+                String type = new ContentType(source.getContentType()).getBaseType();
+                rawAttachmentList.add(new RawAttachment(resourceName(part), measure(source), type, source));
             } catch(Exception e) {
                 e.printStackTrace();
             }
         }
 
-        String calendarText = components.getCalendarContent();
+        String calendarText = components.calendarContent;
         if (calendarText == null) {
             calendarText = "";
         }
@@ -72,21 +66,84 @@ public class EmailConverter {
                 toAddrs, ccAddrs, Collections.emptyList(),
                 plainText, true, false, Collections.emptyList(), calendarText,
                 Optional.empty(), Optional.empty(), Optional.empty());
-
+        parseTime.observeSince(start);
         return new Pair<>(emailMsg, rawAttachmentList);
     }
 
-    private static byte[] readResource(InputStream in) throws IOException {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        OutputStream gout = new DataOutputStream(bout);
-        byte[] tmp = new byte[4096];
-        int r;
-        while ((r=in.read(tmp)) >= 0)
-            gout.write(tmp, 0, r);
-        gout.flush();
-        gout.close();
-        in.close();
-        return bout.toByteArray();
+    private static class ParsedParts {
+        private StringBuilder plainContent;
+        private String calendarContent;
+        private final List<MimePart> attachments = new ArrayList<>();
+        // inline parts with a Content-ID, referenced from the html
+        private final List<MimePart> embedded = new ArrayList<>();
+    }
+
+    /*
+     The same walk as MimeMessageParser.parseMimeMessage, except that attachment parts are kept as they are.
+     The parser copies every attachment into a ByteArrayDataSource, whereas a part's own DataSource decodes it from
+     the message each time it is read, so no attachment is held decoded until it is uploaded.
+     */
+    private static void parsePartTree(MimePart part, ParsedParts parts) {
+        String disposition = MimeMessageParser.parseDisposition(part);
+        boolean isAttachment = Part.ATTACHMENT.equalsIgnoreCase(disposition);
+        if (MimeMessageParser.isMimeType(part, "text/plain") && !isAttachment) {
+            if (parts.plainContent == null) {
+                parts.plainContent = new StringBuilder();
+            }
+            Object content = MimeMessageParser.parseContent(part);
+            parts.plainContent.append(content);
+        } else if (MimeMessageParser.isMimeType(part, "text/html") && !isAttachment) {
+            // the html alternative is not kept
+        } else if (MimeMessageParser.isMimeType(part, "text/calendar") && parts.calendarContent == null && !isAttachment) {
+            parts.calendarContent = MimeMessageParser.parseCalendarContent(part);
+        } else if (MimeMessageParser.isMimeType(part, "multipart/*")) {
+            Multipart mp = MimeMessageParser.parseContent(part);
+            int count = MimeMessageParser.countBodyParts(mp);
+            for (int i = 0; i < count; i++) {
+                parsePartTree(MimeMessageParser.getBodyPartAtIndex(mp, i), parts);
+            }
+        } else if (isAttachment) {
+            parts.attachments.add(part);
+        } else if (disposition == null || Part.INLINE.equalsIgnoreCase(disposition)) {
+            if (MimeMessageParser.parseContentID(part) != null) {
+                parts.embedded.add(part);
+            } else {
+                parts.attachments.add(part);
+            }
+        } else {
+            throw new IllegalStateException("invalid attachment type");
+        }
+    }
+
+    private static String resourceName(MimePart part) {
+        String filename = MimeMessageParser.parseFileName(part);
+        if (filename != null && !filename.isEmpty()) {
+            return filename;
+        }
+        String contentId = MimeMessageParser.parseContentID(part);
+        return contentId != null ? contentId.replaceAll("^<|>$", "") : "unnamed";
+    }
+
+    // Peergos files know their size, anything else is taken from the attachment record rather than re-read
+    private static int sizeOf(Attachment attachment, DataSource source) {
+        if (source instanceof PeergosDataSource) {
+            long size = ((PeergosDataSource) source).size();
+            if (size <= Integer.MAX_VALUE) {
+                return (int) size;
+            }
+        }
+        return attachment.size;
+    }
+
+    // attachments are only decoded into memory when they are uploaded, one at a time, so here we just count the bytes
+    private static int measure(DataSource source) throws IOException {
+        try (InputStream in = source.getInputStream()) {
+            long size = in.transferTo(OutputStream.nullOutputStream());
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Attachment too large: " + source.getName());
+            }
+            return (int) size;
+        }
     }
 
     private static String formatAddressList(List<Recipient> recipients) {
@@ -119,29 +176,20 @@ public class EmailConverter {
         }
         return builder;
     }
-    private static String buildAttachmentUUIDMapKey(String name, int length, String type) {
-        return name + "-" + length + "-" + type;
-    }
-    private static Map<String, String> populateAttachmentUUIDMap(EmailMessage email, Map<String, byte[]> attachmentsMap) {
-        Map<String, String> attachmentToUUIDMap = new HashMap<>();
-        populateAttachmentUUIDMap(email.attachments, attachmentsMap, attachmentToUUIDMap);
-        if (email.forwardingToEmail.isPresent()) {
-            populateAttachmentUUIDMap(email.forwardingToEmail.get().attachments, attachmentsMap, attachmentToUUIDMap);
-        }
-        return attachmentToUUIDMap;
-    }
-    private static void populateAttachmentUUIDMap(List<Attachment> attachments, Map<String, byte[]> attachmentsMap,
-                                                  Map<String, String> attachmentToUUIDMap) {
-        for(Attachment attachment : attachments) {
-            byte[] val = attachmentsMap.get(attachment.uuid);
-            if (val != null) {
-                String key = buildAttachmentUUIDMapKey(attachment.filename, val.length, attachment.type);
-                attachmentToUUIDMap.put(key, attachment.uuid);
-            }
-        }
+    public static Pair<Email, Optional<EmailMessage>> toEmail(EmailMessage email, Map<String, ? extends DataSource> attachmentsMap, boolean roundTrip) {
+        List<Attachment> sentAttachments = new ArrayList<>();
+        Email producedEmail = buildEmail(email, attachmentsMap, sentAttachments);
+        Optional<EmailMessage> emailMessage = roundTrip ?
+                Optional.of(toSentEmailMessage(email.id, producedEmail, sentAttachments)) : Optional.empty();
+        return new Pair<>(producedEmail, emailMessage);
     }
-    public static Pair<Email, Optional<EmailMessage>> toEmail(EmailMessage email, Map<String, byte[]> attachmentsMap, boolean roundTrip) {
-        Map<String, String> attachmentToUUIDMap = populateAttachmentUUIDMap(email, attachmentsMap);
+
+    /*
+     Builds the outgoing email, recording the metadata of each attachment it carries in the same order
+     so the sent copy never has to read an attachment back
+     */
+    private static Email buildEmail(EmailMessage email, Map<String, ? extends DataSource> attachmentsMap,
+                                    List<Attachment> sentAttachments) {
         Collection<Recipient> toAddrs = email.to.stream()
                 .map(a -> new Recipient(null, a, Message.RecipientType.TO))
                 .collect(Collectors.toList());
@@ -157,10 +205,11 @@ public class EmailConverter {
         EmailPopulatingBuilder builder = null;
         //https://www.simplejavamail.org/features.html#section-reply-forward
         if(email.replyingToEmail.isPresent()) {
-            Email origEmail = toEmail(email.replyingToEmail.get(), attachmentsMap, false).left;
+            // a reply does not carry the original's attachments
+            Email origEmail = buildEmail(email.replyingToEmail.get(), attachmentsMap, new ArrayList<>());
             builder = EmailBuilder.replyingTo(origEmail);
         } else if(email.forwardingToEmail.isPresent()) {
-            Email origEmail = toEmail(email.forwardingToEmail.get(), attachmentsMap, false).left;
+            Email origEmail = buildEmail(email.forwardingToEmail.get(), attachmentsMap, sentAttachments);
             builder = buildForwardEmail(origEmail);
         } else {
             builder = EmailBuilder.startingBlank();
@@ -188,35 +237,23 @@ public class EmailConverter {
             CalendarMethod method = email.subject.startsWith("CANCELLED") ? CalendarMethod.CANCEL : CalendarMethod.REQUEST;
             builder = builder.withCalendarText(method, email.icalEvent);
         }
-        List<AttachmentResource> emailAttachments = email.attachments.stream()
-                .filter(f -> attachmentsMap.containsKey(f.uuid))
-                .map(a -> new AttachmentResource(a.filename, new ByteArrayDataSource(attachmentsMap.get(a.uuid), a.type)))
-                .collect(Collectors.toList());
+        List<AttachmentResource> emailAttachments = new ArrayList<>();
+        for(Attachment attachment : email.attachments) {
+            DataSource source = attachmentsMap.get(attachment.uuid);
+            if (source != null) {
+                emailAttachments.add(new AttachmentResource(attachment.filename, source));
+                sentAttachments.add(new Attachment(attachment.filename, sizeOf(attachment, source),
+                        source.getContentType(), attachment.uuid));
+            }
+        }
 
         if (emailAttachments.size() > 0) {
             builder = builder.withAttachments(emailAttachments);
         }
-        Email producedEmail = builder.buildEmail();
-
-        Optional<EmailMessage> emailMessage = roundTrip ?
-                Optional.of(toSentEmailMessage(email.id, producedEmail, attachmentToUUIDMap)) : Optional.empty();
-        return new Pair<>(producedEmail, emailMessage);
+        return builder.buildEmail();
     }
 
-    private static EmailMessage toSentEmailMessage(String id, Email email, Map<String, String> attachmentToUUIDMap) {
-        List<Attachment> attachments = new ArrayList<>();
-        for(AttachmentResource res : email.getAttachments()) {
-            DataSource source = res.getDataSource();
-            try {
-                String type = source.getContentType();
-                String name = res.getName();
-                byte[] data = readResource(source.getInputStream());
-                String key = buildAttachmentUUIDMapKey(name, data.length, type);
-                Attachment attachment = new Attachment(name, data.length, type, attachmentToUUIDMap.get(key));
-                attachments.add(attachment);
-            } catch(Exception e) {
-            }
-        }
+    private static EmailMessage toSentEmailMessage(String id, Email email, List<Attachment> attachments) {
 
         String calendarText = email.getCalendarText();
         Recipient from = email.getFromRecipient();
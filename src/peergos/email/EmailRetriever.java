@@ -9,53 +9,165 @@ import peergos.shared.util.Pair;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class EmailRetriever extends EmailTask {
+    private static final Metrics.Histogram uploadTime = Metrics.histogram("peergos_attachment_upload_seconds",
+            "Time to encrypt and upload one inbound attachment to Peergos");
+    private static final Metrics.Counter uploadedBytes = Metrics.counter("peergos_attachment_upload_bytes_total",
+            "Bytes of inbound attachments uploaded to Peergos");
+    private static final Metrics.Histogram inboxWriteTime = Metrics.histogram("peergos_inbox_write_seconds",
+            "Time to write one received email to a user's inbox");
+    private static final Metrics.Counter receivedEmails = Metrics.counter("emails_received_total",
+            "Emails retrieved over IMAP and added to a user's inbox");
+
     private final IMAPClient imapClient;
     private final UserContext context;
+    // attachments of all messages, across all accounts, are uploaded in parallel within one memory budget
+    private final ExecutorService uploadExecutor;
+    private final ByteBudget uploadBudget;
+    private final UnreadCounter unreadCounter;
+
     public EmailRetriever(IMAPClient imapClient, UserContext context) {
+        this(imapClient, context, new AccountDirectoryCache(context), 4, 64 * 1024 * 1024);
+    }
+
+    public EmailRetriever(IMAPClient imapClient, UserContext context, AccountDirectoryCache cache,
+                          int uploadThreads, long uploadBudgetBytes) {
+        super(cache);
         this.imapClient = imapClient;
         this.context = context;
+        this.uploadExecutor = buildUploadExecutor(uploadThreads);
+        this.uploadBudget = new ByteBudget(uploadBudgetBytes);
+        this.unreadCounter = new UnreadCounter(context);
+        Metrics.gauge("attachment_upload_budget_bytes_reserved", "Bytes of inbound attachments held in memory for upload",
+                uploadBudget::reserved);
+    }
+
+    private static ExecutorService buildUploadExecutor(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "attachment-upload-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public IMAPIdleWatcher watchInbox(String imapUsername, String imapPassword, Runnable onNewMail, int keepAliveSeconds) {
+        return imapClient.watchInbox(imapUsername, imapPassword, onNewMail, keepAliveSeconds);
+    }
+
+    @Override
+    public void invalidate(String peergosUsername) {
+        super.invalidate(peergosUsername);
+        unreadCounter.invalidate(peergosUsername);
+    }
+
+    public void shutdown() {
+        uploadExecutor.shutdown();
+        imapClient.shutdown();
     }
 
     public boolean retrieveEmailsFromServer(String peergosUsername, String emailAddress, Supplier<String> messageIdSupplier,
                                             String imapUserame, String imapPassword, int maxNumberOfUnreadEmails) {
+        return retrieveEmailsFromServer(peergosUsername, emailAddress, messageIdSupplier, imapUserame, imapPassword,
+                maxNumberOfUnreadEmails, new AtomicInteger(), () -> true);
+    }
+
+    public boolean retrieveEmailsFromServer(String peergosUsername, String emailAddress, Supplier<String> messageIdSupplier,
+                                            String imapUserame, String imapPassword, int maxNumberOfUnreadEmails,
+                                            AtomicInteger received, BooleanSupplier leaseHeld) {
 
         EmailBridgeClient bridge = buildEmailBridgeClient(context, peergosUsername, emailAddress);
         if (bridge == null) {
             return true;// user not setup yet
         }
         String inboxPath = peergosUsername + "/.apps/email/data/default/pending/inbox";
-        FileWrapper directory = context.getByPath(inboxPath).join().get();
-        Set<FileWrapper> unreadEmails = directory.getChildren(context.crypto.hasher, context.network).join()
-                .stream().filter(f -> !f.isDirectory()).collect(Collectors.toSet());
-        if (unreadEmails.size() > maxNumberOfUnreadEmails) {
+        FileWrapper directory = cache.getDirectory(peergosUsername, inboxPath).get();
+        if (unreadCounter.unread(peergosUsername, directory) > maxNumberOfUnreadEmails) {
             System.err.println("Skipping user: " + peergosUsername + " due to excess unread emails");
             return true;
         }
-        Function<MimeMessage, Boolean> upload = (msg) -> {
-            Pair<EmailMessage, List<RawAttachment>> emailPackage =  EmailConverter.parseMail(msg, messageIdSupplier);
-            List<Attachment> attachments = new ArrayList<>();
+        AtomicInteger added = new AtomicInteger();
+        Function<MimeMessage, Pair<EmailMessage, List<RawAttachment>>> parse =
+                msg -> EmailConverter.parseMail(msg, messageIdSupplier);
+        Function<Pair<EmailMessage, List<RawAttachment>>, Boolean> upload = (emailPackage) -> {
+            List<CompletableFuture<Optional<Attachment>>> uploads = new ArrayList<>();
             for(RawAttachment rawAttachment : emailPackage.right) {
-                Attachment attachment = bridge.uploadAttachment(rawAttachment.filename, rawAttachment.size,
-                        rawAttachment.type, rawAttachment.data);
-                attachments.add(attachment);
+                uploads.add(uploadAttachment(bridge, rawAttachment));
+            }
+            // keep the order of the parsed message, whichever upload finishes first
+            List<Optional<Attachment>> results = uploads.stream()
+                    .map(CompletableFuture::join)
+                    .collect(Collectors.toList());
+            if (results.stream().anyMatch(Optional::isEmpty)) {
+                // leave the original on the server, it is retried on the next poll
+                System.err.println("Unable to upload all attachments of an email for user: " + peergosUsername);
+                return false;
             }
+            List<Attachment> attachments = results.stream()
+                    .map(Optional::get)
+                    .collect(Collectors.toList());
             EmailMessage email = emailPackage.left.withAttachments(attachments);
+            long writeStart = System.nanoTime();
             bridge.addToInbox(email);
+            inboxWriteTime.observeSince(writeStart);
+            receivedEmails.inc();
+            added.incrementAndGet();
+            received.incrementAndGet();
             return true;
         };
         try {
-            imapClient.retrieveEmails(imapUserame, imapPassword, upload);
+            imapClient.retrieveEmails(imapUserame, imapPassword, parse, upload, leaseHeld);
             return true;
         } catch (MessagingException e) {
             System.err.println("Error unable to retrieveEmails");
             e.printStackTrace();
             return false;
+        } finally {
+            if (added.get() > 0) {
+                cache.getDirectory(peergosUsername, inboxPath)
+                        .ifPresent(updated -> unreadCounter.added(peergosUsername, directory, updated, added.get()));
+            }
+        }
+    }
+
+    /*
+     The budget is taken before the attachment is read out of the parsed message, so a message can only
+     start more uploads once earlier ones have released their bytes.
+     */
+    private CompletableFuture<Optional<Attachment>> uploadAttachment(EmailBridgeClient bridge, RawAttachment rawAttachment) {
+        long reserved = uploadBudget.acquire(rawAttachment.size);
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    byte[] data = rawAttachment.read();
+                    long start = System.nanoTime();
+                    Attachment uploaded = bridge.uploadAttachment(rawAttachment.filename, data.length,
+                            rawAttachment.type, data);
+                    uploadTime.observeSince(start);
+                    uploadedBytes.inc(data.length);
+                    return Optional.of(uploaded);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return Optional.<Attachment>empty();
+                } finally {
+                    uploadBudget.release(reserved);
+                }
+            }, uploadExecutor);
+        } catch (RejectedExecutionException e) {
+            uploadBudget.release(reserved);
+            throw e;
         }
     }
 }
@@ -6,41 +6,100 @@ import peergos.server.apps.email.EmailBridgeClient;
 import peergos.shared.email.Attachment;
 import peergos.shared.email.EmailMessage;
 import peergos.shared.user.UserContext;
-import peergos.shared.user.fs.AsyncReader;
 import peergos.shared.user.fs.FileWrapper;
 import peergos.shared.util.Pair;
 
-import java.io.ByteArrayOutputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 public class EmailSender extends EmailTask {
 
+    private static final Metrics.Histogram sentWriteTime = Metrics.histogram("peergos_sent_write_seconds",
+            "Time to write one sent email, with its attachments, to a user's sent folder");
+    private static final Metrics.Counter sentEmails = Metrics.counter("emails_sent_total",
+            "Emails sent over SMTP and moved to a user's sent folder");
+
     private final SMTPMailer mailer;
     private final UserContext context;
     private final Random random = new Random();
+    // bounds the Peergos lookups and reads issued at once for outbound attachments
+    private final AsyncLimiter attachmentReads;
+    private final OutboxMonitor outboxes;
+
+    private final SocialStateCache socialState;
+    // one journal file per account, only opened by a job for that account
+    private final Optional<Path> journalDir;
 
     public EmailSender(SMTPMailer mailer, UserContext context) {
+        this(mailer, context, new AccountDirectoryCache(context), 8, 0, Optional.empty());
+    }
+
+    public EmailSender(SMTPMailer mailer, UserContext context, AccountDirectoryCache cache, int attachmentReadConcurrency,
+                       long socialStateMaxStalenessMs, Optional<Path> journalDir) {
+        super(cache);
         this.mailer = mailer;
         this.context = context;
+        this.attachmentReads = new AsyncLimiter(attachmentReadConcurrency);
+        Metrics.gauge("attachment_reads_queued", "Outbound attachment lookups and reads waiting for a free slot",
+                attachmentReads::queued);
+        this.outboxes = new OutboxMonitor(context);
+        this.socialState = new SocialStateCache(context, socialStateMaxStalenessMs);
+        this.journalDir = journalDir;
     }
 
-    public void refresh() {
-        context.getSocialState().join();
+    @Override
+    public void invalidate(String username) {
+        super.invalidate(username);
+        outboxes.invalidate(username);
+    }
+
+    /**
+     * Only blocks if one of the users is not yet followed by the bridge
+     */
+    public void refresh(Collection<String> usernames) {
+        socialState.refresh(usernames);
+    }
+
+    public void shutdown() {
+        mailer.shutdown();
+        socialState.shutdown();
     }
     public boolean sendEmails(String username, String emailAddress, String smtpUsername, String smtpPassword) {
-        String path = username + "/.apps/email/data/default/pending/outbox";
-        Optional<FileWrapper> directory = context.getByPath(path).join();
-        if (directory.isPresent()) {
-            return processOutboundEmails(username, path, emailAddress, smtpUsername, smtpPassword);
-        } else {
-            return true;
+        return sendEmails(username, emailAddress, smtpUsername, smtpPassword, new AtomicInteger(), () -> true);
+    }
+    /*
+     The account's journal is read afresh by every job, so a node that has just been given the account sees what the
+     previous owner left in flight, and files anything it had already sent before looking at the outbox.
+     */
+    public boolean sendEmails(String username, String emailAddress, String smtpUsername, String smtpPassword, AtomicInteger sent,
+                              BooleanSupplier leaseHeld) {
+        SendJournal journal = new SendJournal(journalDir.map(dir -> dir.resolve(SendJournal.filename(emailAddress))));
+        try {
+            recover(journal);
+            String path = username + "/.apps/email/data/default/pending/outbox";
+            Optional<FileWrapper> directory = cache.getDirectory(username, path);
+            if (directory.isEmpty() || outboxes.isUnchanged(username, directory.get())) {
+                return true;
+            }
+            boolean success = processOutboundEmails(journal, username, path, emailAddress, smtpUsername, smtpPassword, sent,
+                    leaseHeld);
+            if (success) {
+                cache.getDirectory(username, path).ifPresent(outbox -> outboxes.recordIfEmpty(username, outbox));
+            }
+            return success;
+        } finally {
+            journal.shutdown();
         }
     }
-    private boolean processOutboundEmails(String username, String path, String emailAddress, String smtpUsername, String smtpPassword) {
+    private boolean processOutboundEmails(SendJournal journal, String username, String path, String emailAddress,
+                                          String smtpUsername, String smtpPassword, AtomicInteger sent,
+                                          BooleanSupplier leaseHeld) {
         EmailBridgeClient bridge = buildEmailBridgeClient(context, username, emailAddress);
         if (bridge == null) {
             return true;// user not setup yet
@@ -49,11 +108,33 @@ public class EmailSender extends EmailTask {
             Pair<FileWrapper, EmailMessage> pendingEmail = bridge.getPendingEmail(emailFilename);
             FileWrapper file = pendingEmail.left;
             EmailMessage emailMessage = pendingEmail.right;
-            Optional<Map<String, byte[]>> emailAttachmentsOpt = retrieveEmailAttachments(emailMessage, path, file);
+            Optional<SendJournal.Entry> journalled = journal.get(username, emailFilename);
+            if (journalled.isPresent() && journalled.get().sent) {
+                // the server already has it, only the filing was interrupted
+                if (!fileSentEmail(journal, bridge, path, file, emailMessage, journalled.get())) {
+                    return false;
+                }
+                continue;
+            }
+            Optional<Map<String, PeergosDataSource>> emailAttachmentsOpt = retrieveEmailAttachments(emailMessage, username, path, file);
             if (emailAttachmentsOpt.isPresent()) {
-                Optional<EmailMessage> sentMessage = sendEmail(emailMessage, emailAttachmentsOpt.get(), emailAddress, smtpUsername, smtpPassword);
+                // an email claimed before a crash may or may not have reached the server, it is sent again with the
+                // same Message-ID so that the receiving side can drop the duplicate
+                if (!leaseHeld.getAsBoolean()) {
+                    // another node may own the account by now, it sends this email from its own journal
+                    System.err.println(LocalDateTime.now() + " Lost the lease on account: " + emailAddress + ", stopped sending");
+                    return false;
+                }
+                SendJournal.Entry claim = journalled.orElseGet(() -> journal.claim(username, emailFilename, emailAddress,
+                        newMessageId(emailAddress), LocalDateTime.now(ZoneOffset.UTC)));
+                Optional<EmailMessage> sentMessage = sendEmail(emailMessage, emailAttachmentsOpt.get(), claim,
+                        smtpUsername, smtpPassword);
                 if (sentMessage.isPresent()) {
-                    bridge.encryptAndMoveEmailToSent(file, sentMessage.get(), emailAttachmentsOpt.get());
+                    SendJournal.Entry journalledSent = journal.sent(claim);
+                    sent.incrementAndGet();
+                    if (!fileSentEmail(journal, bridge, file, sentMessage.get(), emailAttachmentsOpt.get(), journalledSent)) {
+                        return false;
+                    }
                 } else {
                     return false;
                 }
@@ -62,6 +143,60 @@ public class EmailSender extends EmailTask {
         return true;
     }
 
+    // files the emails SMTP accepted before the account's last job was interrupted, without listing its outbox
+    private void recover(SendJournal journal) {
+        for (SendJournal.Entry entry : journal.sent()) {
+            try {
+                EmailBridgeClient bridge = buildEmailBridgeClient(context, entry.username, entry.from);
+                if (bridge == null) {
+                    continue;
+                }
+                String path = entry.username + "/.apps/email/data/default/pending/outbox";
+                if (cache.getChild(entry.username, path, entry.filename).isEmpty()) {
+                    journal.filed(entry);
+                    continue;
+                }
+                Pair<FileWrapper, EmailMessage> pendingEmail = bridge.getPendingEmail(entry.filename);
+                if (fileSentEmail(journal, bridge, path, pendingEmail.left, pendingEmail.right, entry)) {
+                    System.out.println(LocalDateTime.now() + " Filed email sent by an interrupted job for user: " + entry.username);
+                }
+            } catch (Exception e) {
+                System.err.println("Unable to file sent email for user: " + entry.username + ", will retry when its outbox is next processed");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // rebuilds the sent copy exactly as it was sent, from the Message-ID and date in the journal
+    private boolean fileSentEmail(SendJournal journal, EmailBridgeClient bridge, String path, FileWrapper file,
+                                  EmailMessage emailMessage, SendJournal.Entry entry) {
+        Map<String, PeergosDataSource> attachmentsMap = populateAttachmentsMap(emailMessage, entry.username, path);
+        EmailMessage preparedEmail = emailMessage.prepare(entry.msgId, entry.from, entry.created);
+        EmailMessage sentMessage = EmailConverter.toEmail(preparedEmail, attachmentsMap, true).right.get();
+        return fileSentEmail(journal, bridge, file, sentMessage, attachmentsMap, entry);
+    }
+
+    /*
+     The sent copy is encrypted as a whole, so each attachment is now needed in memory. Those streamed to the SMTP
+     server are reused, the rest are read from Peergos. If any cannot be read the email stays SENT in the journal and
+     filing it is retried by the next job, rather than filing a sent copy that lists an attachment it does not have.
+     */
+    private boolean fileSentEmail(SendJournal journal, EmailBridgeClient bridge, FileWrapper file, EmailMessage sentMessage,
+                                  Map<String, PeergosDataSource> attachmentsMap, SendJournal.Entry entry) {
+        Optional<Map<String, byte[]>> attachments = readAttachments(attachmentsMap);
+        if (attachments.isEmpty()) {
+            System.err.println(LocalDateTime.now() + " Unable to read attachments of sent email for user: " + entry.username
+                    + ", will retry filing it");
+            return false;
+        }
+        long writeStart = System.nanoTime();
+        bridge.encryptAndMoveEmailToSent(file, sentMessage, attachments.get());
+        sentWriteTime.observeSince(writeStart);
+        journal.filed(entry);
+        sentEmails.inc();
+        return true;
+    }
+
     private boolean deleteFile(FileWrapper directory, String path, FileWrapper file) {
         Path pathToFile = Paths.get(path).resolve(file.getName());
         try {
@@ -73,31 +208,43 @@ public class EmailSender extends EmailTask {
         }
         return false;
     }
-    private Map<String, byte[]> populateAttachmentsMap(EmailMessage msg, String path, Map<String, byte[]> attachmentsMap) {
-        for(Attachment attachment : msg.attachments) {
-            String completePath = path + "/attachments/" + attachment.uuid;
-            Optional<FileWrapper> optFile = context.getByPath(completePath).join();
-            if (optFile.isPresent()) {
-                Optional<byte[]> optAttachment = readFileContents(completePath, optFile.get());
-                if (optAttachment.isPresent()) {
-                    attachmentsMap.put(attachment.uuid, optAttachment.get());
-                }
-            }
-        }
+    private static void collectAttachments(EmailMessage msg, List<Attachment> attachments) {
+        attachments.addAll(msg.attachments);
         if(msg.forwardingToEmail.isPresent()) {
-            return populateAttachmentsMap(msg.forwardingToEmail.get(), path, attachmentsMap);
+            collectAttachments(msg.forwardingToEmail.get(), attachments);
+        }
+    }
+    // the lookups of the message and everything it forwards are all issued together
+    private Map<String, PeergosDataSource> populateAttachmentsMap(EmailMessage msg, String username, String path) {
+        Map<String, PeergosDataSource> attachmentsMap = new HashMap<>();
+        Optional<FileWrapper> attachmentsDir = cache.getDirectory(username, path + "/attachments");
+        if (attachmentsDir.isEmpty()) {
+            return attachmentsMap;
+        }
+        List<Attachment> attachments = new ArrayList<>();
+        collectAttachments(msg, attachments);
+        List<CompletableFuture<Optional<PeergosDataSource>>> lookups = new ArrayList<>();
+        for(Attachment attachment : attachments) {
+            lookups.add(attachmentReads.submit(() ->
+                            attachmentsDir.get().getChild(attachment.uuid, context.crypto.hasher, context.network))
+                    .thenApply(optFile -> optFile.map(file ->
+                            new PeergosDataSource(context, file, attachment.filename, attachment.type))));
+        }
+        for (int i = 0; i < attachments.size(); i++) {
+            String uuid = attachments.get(i).uuid;
+            lookups.get(i).join().ifPresent(source -> attachmentsMap.putIfAbsent(uuid, source));
         }
         return attachmentsMap;
     }
-    private Optional<Map<String, byte[]>> retrieveEmailAttachments(EmailMessage msg, String path, FileWrapper file) {
-        Map<String, byte[]> attachmentsMap = populateAttachmentsMap(msg, path, new HashMap<>());
+    private Optional<Map<String, PeergosDataSource>> retrieveEmailAttachments(EmailMessage msg, String username, String path, FileWrapper file) {
+        Map<String, PeergosDataSource> attachmentsMap = populateAttachmentsMap(msg, username, path);
         if (validateEmail(msg)) {
             return Optional.of(attachmentsMap);
         } else {
-            Optional<FileWrapper> directory = context.getByPath(path).join();
+            Optional<FileWrapper> directory = cache.getDirectory(username, path);
             deleteFile(directory.get(), path, file);
 
-            FileWrapper attachmentDirectory = context.getByPath(path + "/attachments").join().get();
+            FileWrapper attachmentDirectory = cache.getDirectory(username, path + "/attachments").get();
             String attachmentPath = path + "/attachments";
             for(String attachmentFilename : attachmentsMap.keySet()) {
                 FileWrapper attachmentFile = context.getByPath(attachmentPath + "/" + attachmentFilename).join().get();
@@ -133,27 +280,39 @@ public class EmailSender extends EmailTask {
         }
         return true;
     }
-    private Optional<byte[]> readFileContents(String fullPath, FileWrapper file) {
-        try (ByteArrayOutputStream fout = new ByteArrayOutputStream()){
-            long size = file.getFileProperties().size;
-            byte[] buf = new byte[(int)size];
-            AsyncReader reader = file.getInputStream(context.network, context.crypto, c -> {}).get();
-            reader.readIntoArray(buf, 0, buf.length).get();
-            fout.write(buf);
-            return Optional.of(fout.toByteArray());
-        } catch (Exception e) {
-            System.err.println("Error reading file: " + fullPath);
-            e.printStackTrace();
-            return Optional.empty();
+    // empty if any attachment could not be read
+    private Optional<Map<String, byte[]>> readAttachments(Map<String, PeergosDataSource> attachmentsMap) {
+        Map<String, CompletableFuture<Optional<byte[]>>> reads = new HashMap<>();
+        for (Map.Entry<String, PeergosDataSource> entry : attachmentsMap.entrySet()) {
+            reads.put(entry.getKey(), readFileContents(entry.getValue()));
+        }
+        Map<String, byte[]> contents = new HashMap<>();
+        for (Map.Entry<String, CompletableFuture<Optional<byte[]>>> entry : reads.entrySet()) {
+            Optional<byte[]> data = entry.getValue().join();
+            if (data.isEmpty()) {
+                return Optional.empty();
+            }
+            contents.put(entry.getKey(), data.get());
         }
+        return Optional.of(contents);
     }
-    private Optional<EmailMessage> sendEmail(EmailMessage email, Map<String, byte[]> attachmentsMap,
-                              String emailAddress, String smtpUsername, String smtpPassword) {
+    private CompletableFuture<Optional<byte[]>> readFileContents(PeergosDataSource source) {
+        return attachmentReads.submit(source::readAllAsync)
+                .thenApply(Optional::of)
+                .exceptionally(e -> {
+                    System.err.println("Error reading file: " + source.getName());
+                    e.printStackTrace();
+                    return Optional.empty();
+                });
+    }
+    private String newMessageId(String emailAddress) {
         String domain = emailAddress.substring(emailAddress.indexOf("@") + 1);
-        String messageId = "<" + Math.abs(random.nextInt(Integer.MAX_VALUE - 1))
+        return "<" + Math.abs(random.nextInt(Integer.MAX_VALUE - 1))
                 + "." + Math.abs(random.nextInt(Integer.MAX_VALUE - 1)) + "@" + domain + ">";
-
-        EmailMessage preparedEmail = email.prepare(messageId, emailAddress, LocalDateTime.now(ZoneOffset.UTC));
+    }
+    private Optional<EmailMessage> sendEmail(EmailMessage email, Map<String, PeergosDataSource> attachmentsMap,
+                              SendJournal.Entry claim, String smtpUsername, String smtpPassword) {
+        EmailMessage preparedEmail = email.prepare(claim.msgId, claim.from, claim.created);
         Pair<Email, Optional<EmailMessage>> emailToSend = EmailConverter.toEmail(preparedEmail, attachmentsMap, true);
         if (mailer.mail(emailToSend.left, smtpUsername, smtpPassword)) {
             return Optional.of(emailToSend.right.get());
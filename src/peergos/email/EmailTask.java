@@ -3,16 +3,22 @@ package peergos.email;
 import peergos.server.apps.email.EmailBridgeClient;
 import peergos.shared.user.UserContext;
 
-import java.util.NoSuchElementException;
-
 public class EmailTask {
 
+    protected final AccountDirectoryCache cache;
+
+    public EmailTask(AccountDirectoryCache cache) {
+        this.cache = cache;
+    }
+
     protected EmailBridgeClient buildEmailBridgeClient(UserContext context, String peergosUsername, String emailAddress) {
-        EmailBridgeClient bridge = null;
-        try {
-            return EmailBridgeClient.build(context, peergosUsername, emailAddress);
-        } catch(NoSuchElementException ex) {
-            return null;
-        }
+        return cache.getBridge(peergosUsername, emailAddress).orElse(null);
+    }
+
+    /**
+     * Forget what is cached for a user, after something went wrong for them
+     */
+    public void invalidate(String peergosUsername) {
+        cache.invalidate(peergosUsername);
     }
 }
@@ -0,0 +1,138 @@
+package peergos.email;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/*
+ Leases and node heartbeats kept as files in a directory shared by all the nodes, on one machine or a shared filesystem.
+ Each lease file is read and rewritten under an exclusive file lock, so two nodes can never both take the same account.
+ Expiry times are wall clock millis, so nodes on different machines need synchronised clocks.
+ */
+public class FileLeaseBackend implements LeaseBackend {
+
+    // file locks are held per process, so nodes in the same JVM also have to take turns
+    private static final Object PROCESS_LOCK = new Object();
+
+    private final Path leases;
+    private final Path nodes;
+
+    public FileLeaseBackend(Path dir) {
+        this.leases = dir.resolve("leases");
+        this.nodes = dir.resolve("nodes");
+        try {
+            Files.createDirectories(leases);
+            Files.createDirectories(nodes);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create lease directory: " + dir, e);
+        }
+    }
+
+    @Override
+    public boolean acquire(String account, String nodeId, long ttlMillis) {
+        return withLock(account, channel -> {
+            long now = System.currentTimeMillis();
+            String[] lease = read(channel);
+            if (lease != null && !lease[0].equals(nodeId) && Long.parseLong(lease[1]) > now) {
+                return false;
+            }
+            write(channel, nodeId + "\n" + (now + ttlMillis));
+            return true;
+        });
+    }
+
+    @Override
+    public void release(String account, String nodeId) {
+        withLock(account, channel -> {
+            String[] lease = read(channel);
+            if (lease != null && lease[0].equals(nodeId)) {
+                channel.truncate(0);
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public void heartbeat(String nodeId, long ttlMillis) {
+        Path file = nodes.resolve(nodeId);
+        Path tmp = nodes.resolve("." + nodeId + ".tmp");
+        try {
+            Files.write(tmp, Long.toString(System.currentTimeMillis() + ttlMillis).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public Set<String> liveNodes() {
+        Set<String> live = new HashSet<>();
+        long now = System.currentTimeMillis();
+        try (Stream<Path> files = Files.list(nodes)) {
+            files.filter(f -> !f.getFileName().toString().startsWith(".")).forEach(f -> {
+                try {
+                    long expiry = Long.parseLong(new String(Files.readAllBytes(f), StandardCharsets.UTF_8).trim());
+                    if (expiry > now) {
+                        live.add(f.getFileName().toString());
+                    }
+                } catch (IOException | NumberFormatException e) {
+                    // a node that is being written or removed is picked up next time
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return live;
+    }
+
+    @Override
+    public void leave(String nodeId) {
+        try {
+            Files.deleteIfExists(nodes.resolve(nodeId));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private interface LeaseOperation {
+        boolean apply(FileChannel channel) throws IOException;
+    }
+
+    private boolean withLock(String account, LeaseOperation op) {
+        Path file = leases.resolve(AccountFiles.name(account, ".lease"));
+        synchronized (PROCESS_LOCK) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    return op.apply(channel);
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    // the file holds the owner and the expiry millis, an empty file is a released lease
+    private static String[] read(FileChannel channel) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+        channel.read(buf, 0);
+        String[] lease = new String(buf.array(), StandardCharsets.UTF_8).trim().split("\n");
+        return lease.length == 2 ? lease : null;
+    }
+
+    private static void write(FileChannel channel, String contents) throws IOException {
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(contents.getBytes(StandardCharsets.UTF_8)), 0);
+        channel.force(false);
+    }
+}
@@ -1,37 +1,288 @@
 package peergos.email;
 
 import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
 import com.sun.mail.imap.IMAPStore;
 
 import javax.mail.*;
 import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
 
 public class IMAPClient {
 
     private final String host;
     private final int port;
+    private final IMAPConnectionPool pool;
+    private final IMAPSyncState syncState;
+    private final int fetchWindowSize;
+    private final long fetchWindowBytes;
+    // downloaded messages of all accounts, from before the FETCH until each one is confirmed
+    private final ByteBudget receiveBudget;
+    private final ExecutorService pipelineExecutor = buildPipelineExecutor();
+
+    private static final Metrics.Histogram connectTime = Metrics.histogram("imap_connect_seconds",
+            "Time to log in to the IMAP server and open the Inbox, for connections not taken from the pool");
+    private static final Metrics.Histogram listTime = Metrics.histogram("imap_list_seconds",
+            "Time to fetch the UIDs and sizes of the new messages in an Inbox");
+    private static final Metrics.Histogram fetchTime = Metrics.histogram("imap_fetch_seconds",
+            "Time to download one window of messages");
+    private static final Metrics.Counter fetchedBytes = Metrics.counter("imap_fetched_bytes_total",
+            "Size of the messages downloaded, as reported by the IMAP server");
+    private static final Metrics.Counter fetchedMessages = Metrics.counter("imap_fetched_messages_total",
+            "Messages downloaded");
+
+    private static final FetchProfile METADATA_PROFILE = new FetchProfile();
+    private static final FetchProfile CONTENT_PROFILE = new FetchProfile();
+    static {
+        METADATA_PROFILE.add(UIDFolder.FetchProfileItem.UID);
+        METADATA_PROFILE.add(FetchProfile.Item.FLAGS);
+        METADATA_PROFILE.add(FetchProfile.Item.SIZE);
+        CONTENT_PROFILE.add(IMAPFolder.FetchProfileItem.MESSAGE);
+    }
 
     public IMAPClient(String host, int port) {
+        this(host, port, 50, 1, 300, new IMAPSyncState(Optional.empty()), 50, 16 * 1024 * 1024, 64 * 1024 * 1024);
+    }
+
+    public IMAPClient(String host, int port, int maxConnections, int maxIdleConnectionsPerAccount, int idleTimeoutSeconds,
+                      IMAPSyncState syncState, int fetchWindowSize, long fetchWindowBytes, long receiveBudgetBytes) {
         this.host = host;
         this.port = port;
+        this.syncState = syncState;
+        this.fetchWindowSize = fetchWindowSize;
+        this.fetchWindowBytes = fetchWindowBytes;
+        this.receiveBudget = new ByteBudget(receiveBudgetBytes);
+        Metrics.gauge("imap_receive_budget_bytes_reserved", "Bytes of downloaded messages not yet parsed and uploaded",
+                receiveBudget::reserved);
+        Session session = buildSession(10000);
+        this.pool = new IMAPConnectionPool((username, password) -> {
+                    long start = System.nanoTime();
+                    IMAPFolder folder = openInbox(session, username, password);
+                    connectTime.observeSince(start);
+                    return folder;
+                },
+                maxConnections, maxIdleConnectionsPerAccount, idleTimeoutSeconds);
+    }
+
+    /**
+     * Download new messages and hand each one to parse and then upload, with the three steps overlapped.
+     * A message is only flagged for deletion once upload has returned true for it, and while leaseHeld returns true
+     */
+    public <T> void retrieveEmails(String username, String password, Function<MimeMessage, T> parse,
+                                   Function<T, Boolean> upload, BooleanSupplier leaseHeld) throws MessagingException {
+        IMAPConnectionPool.Connection conn = null;
+        boolean reusable = false;
+        try {
+            conn = pool.borrow(username, password);
+            IMAPFolder folder = conn.folder;
+            long uidValidity = folder.getUIDValidity();
+            long lastUid = syncState.lastUid(username, uidValidity);
+            // only ask for messages above the high-water mark
+            long listStart = System.nanoTime();
+            Message[] candidates = folder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+            folder.fetch(candidates, METADATA_PROFILE);
+            listTime.observeSince(listStart);
+            List<Message> messages = new ArrayList<>();
+            List<Long> uids = new ArrayList<>();
+            for (Message message : candidates) {
+                long uid = folder.getUID(message);
+                if (uid > lastUid) { // n:* always includes the newest message, even if it is below n
+                    messages.add(message);
+                    uids.add(uid);
+                }
+            }
+            // the IMAP connection is only ever used from this thread, the other stages work on local copies
+            ReceivePipeline<T> pipeline = new ReceivePipeline<>(pipelineExecutor, parse, upload);
+            Progress progress = new Progress(lastUid, messages.size());
+            try {
+                int offset = 0;
+                for (List<Message> window : windows(messages)) {
+                    reserve(window, offset, progress);
+                    List<MimeMessage> downloaded = download(folder, window);
+                    for (int i = 0; i < downloaded.size(); i++) {
+                        int index = offset + i;
+                        pipeline.submit(downloaded.get(i), () -> release(progress, index));
+                        confirm(pipeline.poll(), messages, uids, progress, leaseHeld);
+                    }
+                    offset += window.size();
+                }
+            } finally {
+                confirm(pipeline.finish(), messages, uids, progress, leaseHeld);
+                // messages that were never submitted, because a download failed
+                for (int i = 0; i < progress.reserved.length(); i++) {
+                    release(progress, i);
+                }
+                if (progress.highWaterMark != lastUid) {
+                    syncState.update(username, new IMAPSyncState.Mark(uidValidity, progress.highWaterMark));
+                }
+            }
+            if (!leaseHeld.getAsBoolean()) {
+                throw new MessagingException("Lost the lease, not expunging for user: " + username);
+            }
+            folder.expunge();
+            reusable = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new MessagingException("Unable to retrieve emails for user: " + username);
+        } finally {
+            if (conn != null) {
+                pool.release(conn, reusable);
+            }
+        }
+    }
+
+    private static class Progress {
+        public long highWaterMark;
+        public boolean contiguous = true;
+        // bytes taken from the receive budget for each message, given back by the upload stage
+        public final AtomicLongArray reserved;
+
+        public Progress(long highWaterMark, int messages) {
+            this.highWaterMark = highWaterMark;
+            this.reserved = new AtomicLongArray(messages);
+        }
+    }
+
+    /*
+     The whole window is reserved at once, so polls of different accounts can't each hold part of the budget while
+     waiting for the rest. Each message's share is released by the upload stage as soon as it is done with the message,
+     not by this thread, so the bytes held by earlier windows come back while this thread waits for the next one.
+     */
+    private void reserve(List<Message> window, int offset, Progress progress) throws MessagingException {
+        long[] sizes = new long[window.size()];
+        long windowBytes = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = Math.max(0, window.get(i).getSize());
+            windowBytes += sizes[i];
+        }
+        long remaining = receiveBudget.acquire(windowBytes);
+        for (int i = 0; i < sizes.length; i++) {
+            long share = i == sizes.length - 1 ? remaining : Math.min(sizes[i], remaining);
+            progress.reserved.set(offset + i, share);
+            remaining -= share;
+        }
+    }
+
+    private void release(Progress progress, int index) {
+        long share = progress.reserved.getAndSet(index, 0);
+        if (share > 0) {
+            receiveBudget.release(share);
+        }
+    }
+
+    private void confirm(List<ReceivePipeline.Confirmation> confirmations, List<Message> messages, List<Long> uids,
+                         Progress progress, BooleanSupplier leaseHeld) {
+        for (ReceivePipeline.Confirmation confirmation : confirmations) {
+            if (confirmation.uploaded && !leaseHeld.getAsBoolean()) {
+                // the next owner fetches it again, a duplicate in the inbox rather than two nodes deleting
+                progress.contiguous = false;
+            } else if (confirmation.uploaded) {
+                try {
+                    messages.get(confirmation.index).setFlag(Flags.Flag.DELETED, true);
+                } catch (MessagingException me) {
+                    //nothing much i can do
+                }
+                if (progress.contiguous) {
+                    progress.highWaterMark = uids.get(confirmation.index);
+                }
+            } else {
+                // retry this one next time
+                progress.contiguous = false;
+            }
+        }
+    }
+
+    // two threads per poll in progress, reused between polls
+    private static ExecutorService buildPipelineExecutor() {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "imap-pipeline-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // split into windows bounded by both message count and total size
+    private List<List<Message>> windows(List<Message> messages) throws MessagingException {
+        List<List<Message>> windows = new ArrayList<>();
+        List<Message> current = new ArrayList<>();
+        long currentBytes = 0;
+        for (Message message : messages) {
+            long size = Math.max(0, message.getSize());
+            if (!current.isEmpty() && (current.size() >= fetchWindowSize || currentBytes + size > fetchWindowBytes)) {
+                windows.add(current);
+                current = new ArrayList<>();
+                currentBytes = 0;
+            }
+            current.add(message);
+            currentBytes += size;
+        }
+        if (!current.isEmpty()) {
+            windows.add(current);
+        }
+        return windows;
     }
 
-    public void retrieveEmails(String username, String password, Function<MimeMessage, Boolean> uploadFunc) throws MessagingException{
+    /*
+     Fetches the whole window in one FETCH and parses each message locally, so that parsing needs no further round trips.
+     The copies are detached from the folder, and the folder's cached content is dropped straight away.
+     */
+    private List<MimeMessage> download(IMAPFolder folder, List<Message> window) throws MessagingException {
+        long start = System.nanoTime();
+        Message[] batch = window.toArray(new Message[0]);
+        folder.fetch(batch, CONTENT_PROFILE);
+        List<MimeMessage> local = new ArrayList<>(batch.length);
+        for (Message message : batch) {
+            IMAPMessage imapMessage = (IMAPMessage) message;
+            local.add(new MimeMessage(null, imapMessage.getMimeStream()));
+            fetchedBytes.inc(Math.max(0, imapMessage.getSize()));
+            imapMessage.invalidateHeaders();
+        }
+        fetchTime.observeSince(start);
+        fetchedMessages.inc(batch.length);
+        return local;
+    }
+
+    /**
+     * Starts a dedicated IDLE connection that calls onNewMail whenever the server reports new messages
+     */
+    public IMAPIdleWatcher watchInbox(String username, String password, Runnable onNewMail, int keepAliveSeconds) {
+        // the read timeout has to outlast the keep-alive, otherwise every IDLE ends in a timeout
+        Session session = buildSession(keepAliveSeconds * 2 * 1000);
+        IMAPIdleWatcher watcher = new IMAPIdleWatcher(username, () -> openInbox(session, username, password), onNewMail);
+        watcher.start();
+        return watcher;
+    }
+
+    public void shutdown() {
+        pipelineExecutor.shutdown();
+        pool.shutdown();
+    }
+
+    private Session buildSession(int timeoutMs) {
         Properties props = new Properties();
         props.put("mail.imaps.host", host);
         props.put("mail.imaps.port", port);
         props.put("mail.store.protocol", "imaps");
-        props.put("mail.imaps.timeout", "10000");
+        props.put("mail.imaps.timeout", Integer.toString(timeoutMs));
         props.put("mail.imaps.ssl.protocols", "TLSv1.2");
+        // leave messages unseen until they have been uploaded
+        props.put("mail.imaps.peek", "true");
+        return Session.getInstance(props);
+    }
 
-        Session session = Session.getInstance(props);
-        IMAPStore storeTry = null;
-        IMAPFolder folderTry = null;
+    private IMAPFolder openInbox(Session session, String username, String password) throws MessagingException {
+        IMAPStore store = (IMAPStore) session.getStore("imaps");
         try {
-            IMAPStore store = (IMAPStore) session.getStore("imaps");
-            storeTry = store;
             store.connect(username, password);
             if (!store.hasCapability("IDLE")) {
                 throw new MessagingException("Unable to connect to server for user: " + username);
@@ -43,25 +294,14 @@ public class IMAPClient {
             if (!folder.isOpen()) {
                 throw new MessagingException("Unable to open folder: " + folder.getFullName() + " for user: " + username);
             }
-            folderTry = folder;
-            Message messages[] = folder.getMessages();
-            for (Message message : messages) {
-                if (uploadFunc.apply((MimeMessage)message)) {
-                    try {
-                        message.setFlag(Flags.Flag.DELETED, true);
-                    } catch (MessagingException me) {
-                        //nothing much i can do
-                    }
-                }
-            }
-            close(store, folder);
-        } catch (Exception e) {
-            e.printStackTrace();
-            close(storeTry, folderTry);
-            throw new MessagingException("Unable to retrieve emails for user: " + username);
+            return folder;
+        } catch (MessagingException | RuntimeException e) {
+            close(store, null);
+            throw e;
         }
     }
-    private void close(Store store, Folder folder) {
+
+    static void close(Store store, Folder folder) {
         try {
             if (folder != null && folder.isOpen()) {
                 folder.close(true); //expunge deleted
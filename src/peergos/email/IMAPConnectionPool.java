@@ -0,0 +1,183 @@
+package peergos.email;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+
+import javax.mail.MessagingException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ Keeps authenticated IMAP connections, with their Inbox open, so that polling an account doesn't pay
+ for a new TLS handshake and login every time.
+ Connections are bounded per account and globally, checked before reuse and closed when idle for too long.
+ */
+public class IMAPConnectionPool {
+
+    public interface Connector {
+        IMAPFolder open(String username, String password) throws MessagingException;
+    }
+
+    public static class Connection {
+        public final IMAPFolder folder;
+        private final String username;
+        private final String password;
+        private volatile long lastUsedMillis;
+
+        private Connection(IMAPFolder folder, String username, String password) {
+            this.folder = folder;
+            this.username = username;
+            this.password = password;
+            this.lastUsedMillis = System.currentTimeMillis();
+        }
+
+        public IMAPStore store() {
+            return (IMAPStore) folder.getStore();
+        }
+    }
+
+    private static final long VALIDATE_AFTER_IDLE_MS = 60 * 1000;
+    private static final long CONNECTION_WAIT_SECONDS = 30;
+
+    private final Connector connector;
+    private final int maxIdlePerAccount;
+    private final long idleTimeoutMs;
+    private final Semaphore permits;
+    private final Map<String, Deque<Connection>> idle = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "imap-pool-evictor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public IMAPConnectionPool(Connector connector, int maxConnections, int maxIdlePerAccount, int idleTimeoutSeconds) {
+        this.connector = connector;
+        this.maxIdlePerAccount = maxIdlePerAccount;
+        this.idleTimeoutMs = idleTimeoutSeconds * 1000L;
+        this.permits = new Semaphore(maxConnections);
+        long sweepSeconds = Math.max(1, idleTimeoutSeconds / 2);
+        evictor.scheduleAtFixedRate(this::evictExpired, sweepSeconds, sweepSeconds, TimeUnit.SECONDS);
+    }
+
+    public Connection borrow(String username, String password) throws MessagingException {
+        Optional<Connection> reused = takeIdle(username, password);
+        if (reused.isPresent()) {
+            return reused.get();
+        }
+        acquirePermit();
+        try {
+            return new Connection(connector.open(username, password), username, password);
+        } catch (MessagingException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @param reusable false if the connection is in an unknown state and must not be handed out again
+     */
+    public void release(Connection conn, boolean reusable) {
+        if (!reusable || !isOpen(conn)) {
+            destroy(conn);
+            return;
+        }
+        conn.lastUsedMillis = System.currentTimeMillis();
+        Deque<Connection> queue = idle.computeIfAbsent(conn.username, u -> new ConcurrentLinkedDeque<>());
+        if (queue.size() >= maxIdlePerAccount) {
+            destroy(conn);
+        } else {
+            queue.push(conn);
+        }
+    }
+
+    private Optional<Connection> takeIdle(String username, String password) {
+        Deque<Connection> queue = idle.get(username);
+        if (queue == null) {
+            return Optional.empty();
+        }
+        Connection conn;
+        while ((conn = queue.poll()) != null) {
+            if (conn.password.equals(password) && isHealthy(conn)) {
+                return Optional.of(conn);
+            }
+            destroy(conn);
+        }
+        return Optional.empty();
+    }
+
+    private void acquirePermit() throws MessagingException {
+        if (permits.tryAcquire()) {
+            return;
+        }
+        // make room by closing a connection nobody is using
+        evictOldestIdle();
+        try {
+            if (!permits.tryAcquire(CONNECTION_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                throw new MessagingException("Timed out waiting for a free IMAP connection");
+            }
+        } catch (InterruptedException ie) {
+            throw new MessagingException("Interrupted waiting for a free IMAP connection");
+        }
+    }
+
+    private boolean isOpen(Connection conn) {
+        return conn.folder.isOpen() && conn.store().isConnected();
+    }
+
+    private boolean isHealthy(Connection conn) {
+        if (!isOpen(conn)) {
+            return false;
+        }
+        if (System.currentTimeMillis() - conn.lastUsedMillis < VALIDATE_AFTER_IDLE_MS) {
+            return true;
+        }
+        try {
+            conn.folder.doCommand(protocol -> {
+                protocol.simpleCommand("NOOP", null);
+                return null;
+            });
+            return true;
+        } catch (MessagingException e) {
+            return false;
+        }
+    }
+
+    private void evictOldestIdle() {
+        Connection oldest = null;
+        for (Deque<Connection> queue : idle.values()) {
+            Connection last = queue.peekLast();
+            if (last != null && (oldest == null || last.lastUsedMillis < oldest.lastUsedMillis)) {
+                oldest = last;
+            }
+        }
+        if (oldest != null && idle.get(oldest.username).removeLastOccurrence(oldest)) {
+            destroy(oldest);
+        }
+    }
+
+    private void evictExpired() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMs;
+        for (Deque<Connection> queue : idle.values()) {
+            for (Connection conn : queue) {
+                if (conn.lastUsedMillis < cutoff && queue.removeLastOccurrence(conn)) {
+                    destroy(conn);
+                }
+            }
+        }
+    }
+
+    private void destroy(Connection conn) {
+        IMAPClient.close(conn.store(), conn.folder);
+        permits.release();
+    }
+
+    public void shutdown() {
+        evictor.shutdown();
+        for (Deque<Connection> queue : idle.values()) {
+            Connection conn;
+            while ((conn = queue.poll()) != null) {
+                destroy(conn);
+            }
+        }
+    }
+}
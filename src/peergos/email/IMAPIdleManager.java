@@ -0,0 +1,62 @@
+package peergos.email;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Owns the IDLE watchers of all accounts and keeps them alive.
+ */
+public class IMAPIdleManager {
+
+    private final EmailRetriever retriever;
+    private final int keepAliveSeconds;
+    private final Map<String, IMAPIdleWatcher> watchers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService keepAliveExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "imap-idle-keepalive");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public IMAPIdleManager(EmailRetriever retriever, int keepAliveSeconds) {
+        this.retriever = retriever;
+        this.keepAliveSeconds = keepAliveSeconds;
+        keepAliveExecutor.scheduleAtFixedRate(() -> watchers.values().forEach(IMAPIdleWatcher::keepAlive),
+                keepAliveSeconds, keepAliveSeconds, TimeUnit.SECONDS);
+    }
+
+    public void watch(String account, String imapUsername, String imapPassword, Runnable onNewMail) {
+        watchers.computeIfAbsent(account,
+                a -> retriever.watchInbox(imapUsername, imapPassword, onNewMail, keepAliveSeconds));
+    }
+
+    public void retainOnly(Set<String> accounts) {
+        for (String account : watchers.keySet()) {
+            if (!accounts.contains(account)) {
+                stop(account);
+            }
+        }
+    }
+
+    public void stop(String account) {
+        IMAPIdleWatcher watcher = watchers.remove(account);
+        if (watcher != null) {
+            watcher.stop();
+        }
+    }
+
+    public boolean isConnected(String account) {
+        IMAPIdleWatcher watcher = watchers.get(account);
+        return watcher != null && watcher.isConnected();
+    }
+
+    public void shutdown() {
+        keepAliveExecutor.shutdown();
+        for (String account : watchers.keySet()) {
+            stop(account);
+        }
+    }
+}
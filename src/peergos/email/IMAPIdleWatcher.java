@@ -0,0 +1,117 @@
+package peergos.email;
+
+import com.sun.mail.imap.IMAPFolder;
+
+import javax.mail.MessagingException;
+import javax.mail.event.MessageCountAdapter;
+import javax.mail.event.MessageCountEvent;
+import java.time.LocalDateTime;
+
+/*
+ Keeps an IDLE session open on one account's Inbox and reports new messages as soon as the server announces them.
+ The connection is only used for notifications, retrieval still goes through IMAPClient.retrieveEmails.
+ */
+public class IMAPIdleWatcher {
+
+    public interface InboxOpener {
+        IMAPFolder open() throws MessagingException;
+    }
+
+    private static final long MIN_RECONNECT_DELAY_MS = 1000;
+    private static final long MAX_RECONNECT_DELAY_MS = 1000 * 60 * 10;
+
+    private final String username;
+    private final InboxOpener opener;
+    private final Runnable onNewMail;
+    private final Thread thread;
+
+    private volatile boolean stopped = false;
+    private volatile IMAPFolder folder = null;
+
+    public IMAPIdleWatcher(String username, InboxOpener opener, Runnable onNewMail) {
+        this.username = username;
+        this.opener = opener;
+        this.onNewMail = onNewMail;
+        this.thread = new Thread(this::watch, "imap-idle-" + username);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public boolean isConnected() {
+        IMAPFolder current = folder;
+        return current != null && current.isOpen();
+    }
+
+    /**
+     * Interrupts the current IDLE with a NOOP so that dead connections are noticed and the server
+     * doesn't drop us for inactivity. The watch loop re-enters IDLE afterwards.
+     */
+    public void keepAlive() {
+        IMAPFolder current = folder;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.doCommand(protocol -> {
+                protocol.simpleCommand("NOOP", null);
+                return null;
+            });
+        } catch (Exception e) {
+            System.err.println(LocalDateTime.now() + " IMAP IDLE keep-alive failed for user: " + username);
+            IMAPClient.close(current.getStore(), current);
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+        IMAPFolder current = folder;
+        if (current != null) {
+            IMAPClient.close(current.getStore(), current);
+        }
+    }
+
+    private void watch() {
+        long delayMs = MIN_RECONNECT_DELAY_MS;
+        while (!stopped) {
+            IMAPFolder current = null;
+            try {
+                current = opener.open();
+                current.addMessageCountListener(new MessageCountAdapter() {
+                    @Override
+                    public void messagesAdded(MessageCountEvent e) {
+                        onNewMail.run();
+                    }
+                });
+                folder = current;
+                delayMs = MIN_RECONNECT_DELAY_MS;
+                // pick up anything that arrived while we were not connected
+                onNewMail.run();
+                while (!stopped) {
+                    current.idle();
+                }
+            } catch (Exception e) {
+                if (!stopped) {
+                    System.err.println(LocalDateTime.now() + " IMAP IDLE session lost for user: " + username
+                            + " reconnecting in " + delayMs + " ms");
+                }
+            } finally {
+                folder = null;
+                if (current != null) {
+                    IMAPClient.close(current.getStore(), current);
+                }
+            }
+            if (stopped) {
+                return;
+            }
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException ie) {
+                return;
+            }
+            delayMs = Math.min(delayMs * 2, MAX_RECONNECT_DELAY_MS);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package peergos.email;
+
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ Remembers, per IMAP account, the UIDVALIDITY of the Inbox and the highest UID that has been uploaded,
+ so that a poll only asks the server for messages above that mark.
+ */
+public class IMAPSyncState {
+
+    public static class Mark {
+        public final long uidValidity;
+        public final long lastUid;
+
+        public Mark(long uidValidity, long lastUid) {
+            this.uidValidity = uidValidity;
+            this.lastUid = lastUid;
+        }
+
+        @Override
+        public String toString() {
+            return uidValidity + ":" + lastUid;
+        }
+
+        public static Mark parse(String value) {
+            String[] parts = value.split(":");
+            return new Mark(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+        }
+    }
+
+    private final Optional<Path> file;
+    private final Map<String, Mark> marks = new ConcurrentHashMap<>();
+
+    public IMAPSyncState(Optional<Path> file) {
+        this.file = file;
+        file.ifPresent(this::load);
+    }
+
+    /**
+     * @return the last uploaded UID, or 0 if nothing is known for this UIDVALIDITY
+     */
+    public long lastUid(String username, long uidValidity) {
+        Mark mark = marks.get(username);
+        return mark != null && mark.uidValidity == uidValidity ? mark.lastUid : 0;
+    }
+
+    public void update(String username, Mark mark) {
+        marks.put(username, mark);
+        file.ifPresent(this::save);
+    }
+
+    private void load(Path path) {
+        if (!path.toFile().exists()) {
+            return;
+        }
+        Properties props = new Properties();
+        try (FileReader fr = new FileReader(path.toFile())) {
+            props.load(fr);
+            for (String username : props.stringPropertyNames()) {
+                marks.put(username, Mark.parse(props.getProperty(username)));
+            }
+        } catch (Exception e) {
+            System.err.println("Unable to read IMAP sync state: " + path + ", all messages will be listed");
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void save(Path path) {
+        Properties props = new Properties();
+        marks.forEach((username, mark) -> props.setProperty(username, mark.toString()));
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileWriter fw = new FileWriter(tmp.toFile())) {
+            props.store(fw, "IMAP UID high-water marks");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
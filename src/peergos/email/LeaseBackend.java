@@ -0,0 +1,29 @@
+package peergos.email;
+
+import java.util.Set;
+
+/*
+ Coordinates which bridge node serves which account. At most one node can hold the lease on an account at a time.
+ */
+public interface LeaseBackend {
+
+    /**
+     * Acquire or renew the lease on an account
+     * @return true if nodeId holds the lease until ttlMillis from now
+     */
+    boolean acquire(String account, String nodeId, long ttlMillis);
+
+    void release(String account, String nodeId);
+
+    /**
+     * Announce that nodeId is alive for the next ttlMillis
+     */
+    void heartbeat(String nodeId, long ttlMillis);
+
+    /**
+     * @return the nodes whose last heartbeat has not expired
+     */
+    Set<String> liveNodes();
+
+    void leave(String nodeId);
+}
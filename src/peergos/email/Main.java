@@ -10,6 +10,7 @@ import java.util.*;
 public class Main {
 
     private static EmailBridge emailBridge = null;
+    private static Properties config = null;
 
     public static final Path DEFAULT_PEERGOS_DIR_PATH =
             Paths.get(System.getProperty("user.home"), ".email-bridge");
@@ -32,7 +33,7 @@ public class Main {
                     int imapPort = args.getInt("imap-port");
 
                     emailBridge = EmailBridge.build(username, password, url, isPublicServer
-                            , smtpHost, smtpPort, imapHost, imapPort);
+                            , smtpHost, smtpPort, imapHost, imapPort, config, DEFAULT_PEERGOS_DIR_PATH);
 
                 } catch (Throwable t) {
                     t.printStackTrace();
@@ -74,9 +75,10 @@ public class Main {
         } else {
             System.out.println("Using Email account file at path:" + emailAccountsFilePath);
         }
+        config = EmailBridge.readConfigFile(configFilePath);
         EMAIL_BRIDGE.main(Args.parse(args));
         if (emailBridge != null) {
-            emailBridge.start(configFilePath, emailAccountsFilePath);
+            emailBridge.start(config, emailAccountsFilePath);
         }
     }
 }
@@ -0,0 +1,148 @@
+package peergos.email;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/*
+ Process wide counters, gauges and latency histograms, rendered in the Prometheus text format.
+ Metrics are registered once by name, registering an existing name returns it, or for a gauge replaces its source.
+ */
+public class Metrics {
+
+    public static final String PREFIX = "email_bridge_";
+    // seconds, from a local parse up to a slow IMAP session
+    private static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120};
+
+    private static final Map<String, Metric> registry = new ConcurrentSkipListMap<>();
+
+    private interface Metric {
+        void write(String name, StringBuilder out);
+    }
+
+    public static class Counter implements Metric {
+        private final String help;
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String help) {
+            this.help = help;
+        }
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void inc(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void write(String name, StringBuilder out) {
+            header(name, help, "counter", out);
+            out.append(name).append(' ').append(value.sum()).append('\n');
+        }
+    }
+
+    private static class Gauge implements Metric {
+        private final String help;
+        private final Supplier<? extends Number> value;
+
+        private Gauge(String help, Supplier<? extends Number> value) {
+            this.help = help;
+            this.value = value;
+        }
+
+        @Override
+        public void write(String name, StringBuilder out) {
+            header(name, help, "gauge", out);
+            out.append(name).append(' ').append(value.get()).append('\n');
+        }
+    }
+
+    public static class Histogram implements Metric {
+        private final String help;
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram(String help) {
+            this.help = help;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double seconds) {
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                if (seconds <= LATENCY_BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(seconds);
+        }
+
+        /**
+         * @param startNanos a value of System.nanoTime() taken when the timed work started
+         */
+        public void observeSince(long startNanos) {
+            observe((System.nanoTime() - startNanos) / 1_000_000_000.0);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        @Override
+        public void write(String name, StringBuilder out) {
+            header(name, help, "histogram", out);
+            // read the total first, so that no bucket can exceed it while observations are being added
+            long total = count.sum();
+            double seconds = sum.sum();
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                cumulative = Math.min(total, cumulative + buckets[i].sum());
+                out.append(name).append("_bucket{le=\"").append(LATENCY_BUCKETS[i]).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(total).append('\n');
+            out.append(name).append("_sum ").append(seconds).append('\n');
+            out.append(name).append("_count ").append(total).append('\n');
+        }
+    }
+
+    public static Counter counter(String name, String help) {
+        return (Counter) registry.computeIfAbsent(PREFIX + name, n -> new Counter(help));
+    }
+
+    public static Histogram histogram(String name, String help) {
+        return (Histogram) registry.computeIfAbsent(PREFIX + name, n -> new Histogram(help));
+    }
+
+    public static void gauge(String name, String help, Supplier<? extends Number> value) {
+        registry.put(PREFIX + name, new Gauge(help, value));
+    }
+
+    public static String render() {
+        StringBuilder out = new StringBuilder();
+        List<Map.Entry<String, Metric>> metrics = new ArrayList<>(registry.entrySet());
+        for (Map.Entry<String, Metric> metric : metrics) {
+            metric.getValue().write(metric.getKey(), out);
+        }
+        return out.toString();
+    }
+
+    private static void header(String name, String help, String type, StringBuilder out) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
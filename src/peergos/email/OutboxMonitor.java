@@ -0,0 +1,64 @@
+package peergos.email;
+
+import peergos.shared.MaybeMultihash;
+import peergos.shared.user.CommittedWriterData;
+import peergos.shared.user.UserContext;
+import peergos.shared.user.fs.FileWrapper;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ Remembers, per user, the state of the outbox when it was last seen empty. An outbox still in that state can be skipped
+ without building a bridge client or listing it. Either the writer's version or the directory's own node being unchanged
+ is enough, since an email added to an empty outbox always rewrites the directory node.
+ */
+public class OutboxMonitor {
+
+    private static final String ATTACHMENTS_DIRECTORY = "attachments";
+
+    private static class EmptyOutbox {
+        public final CommittedWriterData version;
+        public final MaybeMultihash node;
+
+        public EmptyOutbox(CommittedWriterData version, MaybeMultihash node) {
+            this.version = version;
+            this.node = node;
+        }
+    }
+
+    private final UserContext context;
+    private final Map<String, EmptyOutbox> empty = new ConcurrentHashMap<>();
+
+    public OutboxMonitor(UserContext context) {
+        this.context = context;
+    }
+
+    public boolean isUnchanged(String username, FileWrapper outbox) {
+        EmptyOutbox last = empty.get(username);
+        if (last == null) {
+            return false;
+        }
+        return last.version.equals(outbox.version.get(outbox.writer()))
+                || last.node.equals(outbox.getPointer().fileAccess.committedHash());
+    }
+
+    /**
+     * Record the outbox as empty if it holds no emails. Only the links are read, so this cannot miss an email
+     * that arrived after the last listing
+     */
+    public void recordIfEmpty(String username, FileWrapper outbox) {
+        boolean hasEmails = outbox.getChildrenCapabilities(context.crypto.hasher, context.network).join().stream()
+                .anyMatch(link -> !link.name.name.equals(ATTACHMENTS_DIRECTORY));
+        if (hasEmails) {
+            empty.remove(username);
+        } else {
+            empty.put(username, new EmptyOutbox(outbox.version.get(outbox.writer()),
+                    outbox.getPointer().fileAccess.committedHash()));
+        }
+    }
+
+    public void invalidate(String username) {
+        empty.remove(username);
+    }
+}
@@ -0,0 +1,162 @@
+package peergos.email;
+
+import peergos.shared.user.UserContext;
+import peergos.shared.user.fs.AsyncReader;
+import peergos.shared.user.fs.FileWrapper;
+
+import javax.activation.DataSource;
+import javax.mail.EncodingAware;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ A DataSource that streams a Peergos file, so the MIME encoder can start encoding an attachment before the whole file
+ has been read. Each getInputStream() opens and decrypts the file again. A stream that is read to the end keeps a copy
+ of the file, since the sent copy written once the email has been sent needs it in memory anyway, and would otherwise
+ read it from Peergos a second time.
+ */
+public class PeergosDataSource implements DataSource, EncodingAware {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final Metrics.Histogram readTime = Metrics.histogram("peergos_read_seconds",
+            "Time to read one outbound attachment from Peergos");
+    private static final Metrics.Counter readBytes = Metrics.counter("peergos_read_bytes_total",
+            "Bytes of outbound attachments read from Peergos");
+
+    private final UserContext context;
+    private final FileWrapper file;
+    private final String name;
+    private final String contentType;
+    private volatile byte[] contents;
+
+    public PeergosDataSource(UserContext context, FileWrapper file, String name, String contentType) {
+        this.context = context;
+        this.file = file;
+        this.name = name;
+        this.contentType = contentType;
+    }
+
+    public long size() {
+        return file.getFileProperties().size;
+    }
+
+    public byte[] readAll() throws IOException {
+        try {
+            return readAllAsync().join();
+        } catch (Exception e) {
+            throw new IOException("Unable to read " + name, e);
+        }
+    }
+
+    public CompletableFuture<byte[]> readAllAsync() {
+        byte[] streamed = contents;
+        if (streamed != null) {
+            return CompletableFuture.completedFuture(streamed);
+        }
+        long size = size();
+        if (size > Integer.MAX_VALUE) {
+            return CompletableFuture.failedFuture(new IOException("File too large: " + name));
+        }
+        byte[] res = new byte[(int) size];
+        long start = System.nanoTime();
+        return file.getInputStream(context.network, context.crypto, c -> {})
+                .thenCompose(reader -> reader.readIntoArray(res, 0, res.length)
+                        .whenComplete((r, t) -> reader.close()))
+                .thenApply(read -> {
+                    readTime.observeSince(start);
+                    readBytes.inc(res.length);
+                    return res;
+                });
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        try {
+            AsyncReader reader = file.getInputStream(context.network, context.crypto, c -> {}).join();
+            return new ReaderInputStream(reader, size());
+        } catch (Exception e) {
+            throw new IOException("Unable to open " + name, e);
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Read only data source: " + name);
+    }
+
+    /**
+     * Without a fixed encoding, Jakarta Mail reads the whole file once just to pick one before encoding it
+     */
+    @Override
+    public String getEncoding() {
+        return "base64";
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    private class ReaderInputStream extends InputStream {
+        private final AsyncReader reader;
+        private long remaining;
+        // everything read so far, handed to the data source once the whole file has been read
+        private final byte[] copy;
+        private int copied;
+
+        public ReaderInputStream(AsyncReader reader, long size) {
+            this.reader = reader;
+            this.remaining = size;
+            this.copy = size <= Integer.MAX_VALUE ? new byte[(int) size] : null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int r = read(single, 0, 1);
+            return r < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            int toRead = (int) Math.min(Math.min(len, CHUNK_SIZE), remaining);
+            try {
+                int read = reader.readIntoArray(b, off, toRead).join();
+                remaining -= read;
+                if (copy != null) {
+                    System.arraycopy(b, off, copy, copied, read);
+                    copied += read;
+                    if (remaining == 0) {
+                        contents = copy;
+                    }
+                }
+                return read;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+
+        @Override
+        public void close() {
+            reader.close();
+        }
+    }
+}
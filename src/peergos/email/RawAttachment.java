@@ -1,11 +1,17 @@
 package peergos.email;
 
+import javax.activation.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+
 public class RawAttachment {
 
     public final String filename;
     public final int size;
     public final String type;
-    public final byte[] data;
+    private final Optional<byte[]> data;
+    private final Optional<DataSource> source;
 
     public RawAttachment(String filename, int size,
                          String type, byte[] data
@@ -13,6 +19,33 @@ public class RawAttachment {
         this.filename = filename;
         this.size = size;
         this.type = type;
-        this.data = data;
+        this.data = Optional.of(data);
+        this.source = Optional.empty();
+    }
+
+    /**
+     * An attachment whose contents stay in the parsed message until read() is called
+     */
+    public RawAttachment(String filename, int size,
+                         String type, DataSource source
+    ) {
+        this.filename = filename;
+        this.size = size;
+        this.type = type;
+        this.data = Optional.empty();
+        this.source = Optional.of(source);
+    }
+
+    public byte[] read() throws IOException {
+        if (data.isPresent()) {
+            return data.get();
+        }
+        try (InputStream in = source.get().getInputStream()) {
+            byte[] res = in.readNBytes(size);
+            if (res.length != size || in.read() != -1) {
+                throw new IOException("Attachment " + filename + " changed size while reading");
+            }
+            return res;
+        }
     }
 }
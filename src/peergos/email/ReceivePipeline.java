@@ -0,0 +1,161 @@
+package peergos.email;
+
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+
+/*
+ The parse and upload stages of one poll, each on its own thread and joined by bounded queues, so the IMAP connection
+ can download the next window while earlier messages are still being parsed and written to Peergos.
+ Each stage handles one message at a time, so confirmations come back in the order the messages were submitted.
+ The queues hold a couple of messages each, whatever their size, so the bytes held are bounded by the fetch window
+ being submitted rather than by the queue.
+ */
+public class ReceivePipeline<T> {
+
+    private static final int QUEUE_DEPTH = 2;
+
+    public static class Confirmation {
+        public final int index;
+        public final boolean uploaded;
+
+        public Confirmation(int index, boolean uploaded) {
+            this.index = index;
+            this.uploaded = uploaded;
+        }
+    }
+
+    private static class Staged<V> {
+        public final int index;
+        public final Optional<V> value;
+        public final Runnable onDone;
+
+        public Staged(int index, Optional<V> value, Runnable onDone) {
+            this.index = index;
+            this.value = value;
+            this.onDone = onDone;
+        }
+
+        public boolean isEnd() {
+            return index < 0;
+        }
+    }
+
+    private final BlockingQueue<Staged<MimeMessage>> fetched;
+    private final BlockingQueue<Staged<T>> parsed;
+    private final BlockingQueue<Confirmation> confirmed = new LinkedBlockingQueue<>();
+    private int submitted = 0;
+    private int received = 0;
+
+    public ReceivePipeline(ExecutorService executor, Function<MimeMessage, T> parse, Function<T, Boolean> upload) {
+        this.fetched = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        this.parsed = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        executor.execute(() -> parseStage(parse));
+        executor.execute(() -> uploadStage(upload));
+    }
+
+    /**
+     * Queue a downloaded message, blocking while the parse stage is full
+     * @param onDone run by the upload stage once it has finished with the message, before its confirmation is queued
+     */
+    public void submit(MimeMessage message, Runnable onDone) {
+        put(fetched, new Staged<>(submitted++, Optional.of(message), onDone));
+    }
+
+    /**
+     * @return the confirmations that have arrived so far, without waiting
+     */
+    public List<Confirmation> poll() {
+        List<Confirmation> res = new ArrayList<>();
+        confirmed.drainTo(res);
+        received += res.size();
+        return res;
+    }
+
+    /**
+     * Wait for every submitted message, then stop the stages
+     * @return the confirmations not already returned by poll()
+     */
+    public List<Confirmation> finish() {
+        put(fetched, new Staged<>(-1, Optional.empty(), () -> {}));
+        List<Confirmation> res = new ArrayList<>();
+        while (received < submitted) {
+            res.add(take(confirmed));
+            received++;
+        }
+        return res;
+    }
+
+    private void parseStage(Function<MimeMessage, T> parse) {
+        while (true) {
+            Staged<MimeMessage> next = take(fetched);
+            if (next.isEnd()) {
+                put(parsed, new Staged<>(-1, Optional.empty(), () -> {}));
+                return;
+            }
+            Optional<T> result = Optional.empty();
+            try {
+                result = Optional.ofNullable(parse.apply(next.value.get()));
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+            put(parsed, new Staged<>(next.index, result, next.onDone));
+        }
+    }
+
+    private void uploadStage(Function<T, Boolean> upload) {
+        while (true) {
+            Staged<T> next = take(parsed);
+            if (next.isEnd()) {
+                return;
+            }
+            boolean uploaded = false;
+            try {
+                uploaded = next.value.isPresent() && upload.apply(next.value.get());
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+            next.onDone.run();
+            put(confirmed, new Confirmation(next.index, uploaded));
+        }
+    }
+
+    // an interrupt must not lose a message or a confirmation, so it is only restored once the queue has accepted it
+    private static <E> void put(BlockingQueue<E> queue, E element) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(element);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <E> E take(BlockingQueue<E> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
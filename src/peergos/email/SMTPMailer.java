@@ -5,33 +5,144 @@ import org.simplejavamail.api.mailer.Mailer;
 import org.simplejavamail.api.mailer.config.TransportStrategy;
 import org.simplejavamail.mailer.MailerBuilder;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class SMTPMailer {
 
+    private static final Metrics.Histogram mailTime = Metrics.histogram("smtp_mail_seconds",
+            "Time to validate and send one email over SMTP");
+    private static final Metrics.Counter mailFailures = Metrics.counter("smtp_mail_failures_total",
+            "Emails the SMTP server did not accept");
+
     private final String smtpHost;
     private final int smtpPort;
+    private final int maxConnectionsPerAccount;
+    private final int idleTimeoutMillis;
+    // each mailer owns a pool of authenticated transports, so consecutive sends for an account share a connection
+    private final Map<String, PooledMailer> mailers = new ConcurrentHashMap<>();
+
+    private static class PooledMailer {
+        public final Mailer mailer;
+        public final String password;
+        public final AtomicInteger inUse = new AtomicInteger();
+        public volatile long lastUsedMillis = System.currentTimeMillis();
+        // replaced after a password change, shut down once the sends still using it have finished
+        public volatile boolean retired;
+        public final AtomicBoolean closed = new AtomicBoolean();
+
+        public PooledMailer(Mailer mailer, String password) {
+            this.mailer = mailer;
+            this.password = password;
+        }
+    }
 
     public SMTPMailer(String smtpHost, int smtpPort) {
+        this(smtpHost, smtpPort, 1, 60);
+    }
+
+    public SMTPMailer(String smtpHost, int smtpPort, int maxConnectionsPerAccount, int idleTimeoutSeconds) {
         this.smtpHost = smtpHost;
         this.smtpPort = smtpPort;
+        this.maxConnectionsPerAccount = maxConnectionsPerAccount;
+        this.idleTimeoutMillis = idleTimeoutSeconds * 1000;
     }
+
     public boolean mail(Email email, String smtpUsername, String smtpPassword) {
-        Mailer mailer = MailerBuilder
-                .withSMTPServer(smtpHost, smtpPort, smtpUsername, smtpPassword)
-                .withTransportStrategy(TransportStrategy.SMTPS)
-                //.withTransportModeLoggingOnly(true)
-                //.withDebugLogging(true)
-                //.async()
-                .buildMailer();
+        long start = System.nanoTime();
+        PooledMailer pooled = getMailer(smtpUsername, smtpPassword);
         try {
-            if (!mailer.validate(email)) {
+            if (!pooled.mailer.validate(email)) {
                 //fixme handle this better
+                mailFailures.inc();
                 return false;
             }
-            mailer.sendMail(email);
+            pooled.mailer.sendMail(email);
             return true;
         } catch (Throwable e) {
             e.printStackTrace();
+            mailFailures.inc();
             return false;
+        } finally {
+            mailTime.observeSince(start);
+            release(pooled);
+        }
+    }
+
+    private PooledMailer getMailer(String smtpUsername, String smtpPassword) {
+        evictIdle();
+        String key = smtpHost + ":" + smtpPort + ":" + smtpUsername;
+        return mailers.compute(key, (k, existing) -> {
+            PooledMailer result = existing;
+            if (existing == null || !existing.password.equals(smtpPassword)) {
+                if (existing != null) {
+                    retire(existing);
+                }
+                result = new PooledMailer(buildMailer(smtpUsername, smtpPassword), smtpPassword);
+            }
+            result.inUse.incrementAndGet();
+            result.lastUsedMillis = System.currentTimeMillis();
+            return result;
+        });
+    }
+
+    private Mailer buildMailer(String smtpUsername, String smtpPassword) {
+        return MailerBuilder
+                .withSMTPServer(smtpHost, smtpPort, smtpUsername, smtpPassword)
+                .withTransportStrategy(TransportStrategy.SMTPS)
+                .withConnectionPoolCoreSize(0)
+                .withConnectionPoolMaxSize(maxConnectionsPerAccount)
+                .withConnectionPoolExpireAfterMillis(idleTimeoutMillis)
+                //.withTransportModeLoggingOnly(true)
+                //.withDebugLogging(true)
+                //.async()
+                .buildMailer();
+    }
+
+    private static void release(PooledMailer pooled) {
+        pooled.lastUsedMillis = System.currentTimeMillis();
+        if (pooled.inUse.decrementAndGet() == 0 && pooled.retired) {
+            shutdown(pooled);
+        }
+    }
+
+    // whichever of this and the last release sees the other's write shuts the mailer down
+    private static void retire(PooledMailer pooled) {
+        pooled.retired = true;
+        if (pooled.inUse.get() == 0) {
+            shutdown(pooled);
         }
     }
+
+    // the transports expire by themselves, this drops the mailers of accounts that stopped sending
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        for (String key : mailers.keySet()) {
+            mailers.computeIfPresent(key, (k, pooled) -> {
+                if (pooled.inUse.get() > 0 || pooled.lastUsedMillis >= cutoff) {
+                    return pooled;
+                }
+                shutdown(pooled);
+                return null;
+            });
+        }
+    }
+
+    private static void shutdown(PooledMailer pooled) {
+        if (!pooled.closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            pooled.mailer.shutdownConnectionPool();
+        } catch (Exception e) {
+            // nothing was ever sent with this mailer, so there is no pool to shut down
+        }
+    }
+
+    public void shutdown() {
+        mailers.values().forEach(SMTPMailer::shutdown);
+        mailers.clear();
+    }
 }
@@ -0,0 +1,236 @@
+package peergos.email;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/*
+ Append-only record of outbox emails between being picked up and being filed in the sent folder.
+ An email is CLAIMED, with the Message-ID and date it is sent with, before it is handed to SMTP, SENT once the server
+ has accepted it and FILED once it has been moved to the sent folder. Only emails that are not yet filed are kept,
+ so a restart replays the emails in flight rather than the outboxes.
+ The file is only created once something is claimed, and is removed again once nothing is in flight.
+ */
+public class SendJournal {
+
+    private static final String CLAIMED = "CLAIMED", SENT = "SENT", FILED = "FILED";
+    // rewrite the file once it holds this many more records than there are emails in flight
+    private static final int COMPACT_SLACK = 1000;
+
+    public static class Entry {
+        public final String username;
+        public final String filename;
+        public final String from;
+        public final String msgId;
+        public final LocalDateTime created;
+        public final boolean sent;
+
+        public Entry(String username, String filename, String from, String msgId, LocalDateTime created, boolean sent) {
+            this.username = username;
+            this.filename = filename;
+            this.from = from;
+            this.msgId = msgId;
+            this.created = created;
+            this.sent = sent;
+        }
+
+        public Entry asSent() {
+            return new Entry(username, filename, from, msgId, created, true);
+        }
+    }
+
+    private final Optional<Path> file;
+    private final Map<String, Entry> inFlight = new ConcurrentHashMap<>();
+    private FileChannel channel;
+    private int records;
+
+    public SendJournal(Optional<Path> file) {
+        this.file = file;
+        file.ifPresent(path -> {
+            // a truncated last record has to be dropped before anything is appended after it
+            if (!load(path) || records > inFlight.size() + COMPACT_SLACK) {
+                compact(path);
+            }
+        });
+    }
+
+    /**
+     * @return the name of the journal file for an account, within a directory of journals
+     */
+    public static String filename(String account) {
+        return AccountFiles.name(account, ".journal");
+    }
+
+    public Optional<Entry> get(String username, String filename) {
+        return Optional.ofNullable(inFlight.get(key(username, filename)));
+    }
+
+    /**
+     * @return every email that is claimed or sent but not filed yet
+     */
+    public List<Entry> inFlight() {
+        return new ArrayList<>(inFlight.values());
+    }
+
+    /**
+     * @return the emails SMTP has accepted that are not filed yet
+     */
+    public List<Entry> sent() {
+        return inFlight.values().stream()
+                .filter(e -> e.sent)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Record that an email is about to be sent. Must return before the email is handed to SMTP
+     */
+    public Entry claim(String username, String filename, String from, String msgId, LocalDateTime created) {
+        Entry entry = new Entry(username, filename, from, msgId, created, false);
+        for (String field : List.of(username, filename, from, msgId)) {
+            if (field.contains("\t") || field.contains("\n") || field.contains("\r")) {
+                throw new IllegalArgumentException("Unable to journal field: " + field);
+            }
+        }
+        // the map is updated first, so that a compaction triggered by the append keeps the entry
+        inFlight.put(key(username, filename), entry);
+        try {
+            append(String.join("\t", CLAIMED, username, filename, from, msgId, created.toString()));
+        } catch (IllegalStateException e) {
+            inFlight.remove(key(username, filename));
+            throw e;
+        }
+        return entry;
+    }
+
+    public Entry sent(Entry claimed) {
+        Entry sent = claimed.asSent();
+        inFlight.put(key(claimed.username, claimed.filename), sent);
+        append(String.join("\t", SENT, claimed.username, claimed.filename));
+        return sent;
+    }
+
+    public void filed(Entry entry) {
+        inFlight.remove(key(entry.username, entry.filename));
+        append(String.join("\t", FILED, entry.username, entry.filename));
+    }
+
+    public synchronized void shutdown() {
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            if (file.isPresent() && inFlight.isEmpty()) {
+                Files.deleteIfExists(file.get());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String key(String username, String filename) {
+        return username + "/" + filename;
+    }
+
+    private synchronized void append(String record) {
+        if (file.isEmpty()) {
+            return;
+        }
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(file.get(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            }
+            channel.write(ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8)));
+            channel.force(false);
+        } catch (IOException e) {
+            // without the record a crash could send this email twice, so don't send it
+            throw new IllegalStateException("Unable to write to send journal: " + file.get(), e);
+        }
+        records++;
+        if (records > inFlight.size() + COMPACT_SLACK) {
+            compact(file.get());
+        }
+    }
+
+    // returns false if the last record is incomplete
+    private boolean load(Path path) {
+        if (!path.toFile().exists()) {
+            return true;
+        }
+        String contents;
+        try {
+            contents = Files.readString(path, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read send journal: " + path, e);
+        }
+        List<String> lines = contents.lines().collect(Collectors.toList());
+        records = lines.size();
+        for (String line : lines) {
+            String[] fields = line.split("\t");
+            // a crash part way through a write leaves a truncated last record, which is ignored
+            if (fields[0].equals(CLAIMED) && fields.length == 6) {
+                try {
+                    inFlight.put(key(fields[1], fields[2]),
+                            new Entry(fields[1], fields[2], fields[3], fields[4], LocalDateTime.parse(fields[5]), false));
+                } catch (DateTimeParseException e) {
+                    System.err.println("Ignoring incomplete send journal record: " + line);
+                }
+            } else if (fields[0].equals(SENT) && fields.length == 3) {
+                inFlight.computeIfPresent(key(fields[1], fields[2]), (k, e) -> e.asSent());
+            } else if (fields[0].equals(FILED) && fields.length == 3) {
+                inFlight.remove(key(fields[1], fields[2]));
+            }
+        }
+        return contents.isEmpty() || contents.endsWith("\n");
+    }
+
+    // rewrites the file with only the emails in flight, and reopens it for appending
+    private synchronized void compact(Path path) {
+        if (inFlight.isEmpty()) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+                Files.deleteIfExists(path);
+                records = 0;
+                return;
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to compact send journal: " + path, e);
+            }
+        }
+        List<String> lines = new ArrayList<>();
+        for (Entry e : inFlight.values()) {
+            lines.add(String.join("\t", CLAIMED, e.username, e.filename, e.from, e.msgId, e.created.toString()));
+            if (e.sent) {
+                lines.add(String.join("\t", SENT, e.username, e.filename));
+            }
+        }
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.write(tmp, lines, StandardCharsets.UTF_8);
+            try (FileChannel written = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                written.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (channel != null) {
+                channel.close();
+            }
+            channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            records = lines.size();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to compact send journal: " + path, e);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package peergos.email;
+
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Decides which accounts this node serves in cluster mode. Accounts are split between the live nodes by consistent hashing,
+ and a node only works on an account while it holds that account's lease.
+ When the ring moves an account away, its lease is kept until the jobs in flight on this node have finished,
+ so the new owner cannot start before the old one has stopped.
+ */
+public class ShardCoordinator {
+
+    private final String nodeId;
+    private final LeaseBackend backend;
+    private final long leaseTtlMs;
+    private final int virtualNodes;
+    // account -> local time after which the lease is no longer trusted
+    private final Map<String, Long> held = new ConcurrentHashMap<>();
+    private final Map<String, Integer> inFlight = new ConcurrentHashMap<>();
+    private volatile ConsistentHashRing ring;
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "shard-coordinator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ShardCoordinator(String nodeId, LeaseBackend backend, long leaseTtlMs, int virtualNodes) {
+        if (!nodeId.matches("[A-Za-z0-9_-]+")) {
+            throw new IllegalStateException("Invalid cluster node id: " + nodeId);
+        }
+        this.nodeId = nodeId;
+        this.backend = backend;
+        this.leaseTtlMs = leaseTtlMs;
+        this.virtualNodes = virtualNodes;
+        this.ring = new ConsistentHashRing(Set.of(nodeId), virtualNodes);
+    }
+
+    public void start() {
+        refresh();
+        long period = Math.max(1, leaseTtlMs / 3);
+        refresher.scheduleAtFixedRate(this::refresh, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if the ring currently places this account on this node
+     */
+    public boolean isAssigned(String account) {
+        return ring.owner(account).map(nodeId::equals).orElse(false);
+    }
+
+    /**
+     * Start a job for an account. Every successful claim must be followed by a call to done()
+     * @return true if this node holds the lease on the account
+     */
+    public synchronized boolean claim(String account) {
+        if (!isAssigned(account)) {
+            return false;
+        }
+        Long validUntil = held.get(account);
+        if (validUntil == null || validUntil - System.currentTimeMillis() < leaseTtlMs / 2) {
+            if (!renew(account)) {
+                return false;
+            }
+        }
+        inFlight.merge(account, 1, Integer::sum);
+        return true;
+    }
+
+    /**
+     * Fencing check for a job between claim() and done(), made right before it changes anything outside the bridge.
+     * The lease is renewed if it is close to running out
+     * @return false once this node can no longer be sure it holds the lease on the account
+     */
+    public synchronized boolean holds(String account) {
+        Long validUntil = held.get(account);
+        if (validUntil == null) {
+            return false;
+        }
+        if (validUntil - System.currentTimeMillis() < leaseTtlMs / 2) {
+            return renew(account);
+        }
+        return true;
+    }
+
+    public synchronized void done(String account) {
+        inFlight.computeIfPresent(account, (a, count) -> count > 1 ? count - 1 : null);
+    }
+
+    public void shutdown() {
+        refresher.shutdownNow();
+        synchronized (this) {
+            for (String account : held.keySet()) {
+                backend.release(account, nodeId);
+            }
+            held.clear();
+        }
+        backend.leave(nodeId);
+    }
+
+    private boolean renew(String account) {
+        // the deadline is measured from before the request, and a quarter of the ttl is kept back for pauses and clock skew
+        long start = System.currentTimeMillis();
+        if (backend.acquire(account, nodeId, leaseTtlMs)) {
+            held.put(account, start + leaseTtlMs - leaseTtlMs / 4);
+            return true;
+        }
+        held.remove(account);
+        return false;
+    }
+
+    private synchronized void refresh() {
+        try {
+            backend.heartbeat(nodeId, leaseTtlMs);
+            Set<String> live = new HashSet<>(backend.liveNodes());
+            live.add(nodeId);
+            if (!live.equals(ring.nodes())) {
+                System.out.println(LocalDateTime.now() + " Cluster nodes: " + live);
+                ring = new ConsistentHashRing(live, virtualNodes);
+            }
+            for (String account : new HashSet<>(held.keySet())) {
+                boolean busy = inFlight.containsKey(account);
+                if (isAssigned(account) || busy) {
+                    if (!renew(account) && busy) {
+                        System.err.println(LocalDateTime.now() + " Lost the lease on account: " + account + " while it was in use");
+                    }
+                } else {
+                    backend.release(account, nodeId);
+                    held.remove(account);
+                }
+            }
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package peergos.email;
+
+import peergos.shared.user.SocialState;
+import peergos.shared.user.UserContext;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ Keeps the bridge user's social state, reloading it in the background once it is older than the staleness bound.
+ Reloading also processes new follow requests, which is how the bridge gains access to a user's email directories.
+ A caller only waits for a reload when an account is not followed yet, and only the first time that account is seen.
+ */
+public class SocialStateCache {
+
+    private final UserContext context;
+    private final long maxStalenessMs;
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "social-state-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Set<String> awaited = ConcurrentHashMap.newKeySet();
+    private volatile Optional<SocialState> latest = Optional.empty();
+    private volatile long refreshedMillis = 0;
+    private CompletableFuture<Optional<SocialState>> inFlight;
+
+    public SocialStateCache(UserContext context, long maxStalenessMs) {
+        this.context = context;
+        this.maxStalenessMs = maxStalenessMs;
+    }
+
+    /**
+     * Start a reload if the cached state is stale, and wait for one if any of the users is followed by neither
+     * the cached state nor a reload already waited for
+     */
+    public void refresh(Collection<String> usernames) {
+        if (System.currentTimeMillis() - refreshedMillis >= maxStalenessMs) {
+            reload();
+        }
+        boolean unresolved = false;
+        for (String username : usernames) {
+            if (!isFollowing(username) && awaited.add(username)) {
+                unresolved = true;
+            }
+        }
+        if (unresolved) {
+            reload().join();
+        }
+    }
+
+    public boolean isFollowing(String username) {
+        return latest.map(state -> state.getFollowing().contains(username)).orElse(false);
+    }
+
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    private synchronized CompletableFuture<Optional<SocialState>> reload() {
+        if (inFlight != null) {
+            return inFlight;
+        }
+        CompletableFuture<Optional<SocialState>> reload = CompletableFuture.supplyAsync(() -> {
+            try {
+                SocialState state = context.getSocialState().join();
+                latest = Optional.of(state);
+                refreshedMillis = System.currentTimeMillis();
+            } catch (Exception e) {
+                System.err.println(LocalDateTime.now() + " Unable to refresh social state: " + e.getMessage());
+            }
+            return latest;
+        }, refresher);
+        inFlight = reload;
+        reload.whenComplete((res, err) -> clearInFlight());
+        return reload;
+    }
+
+    private synchronized void clearInFlight() {
+        inFlight = null;
+    }
+}
@@ -0,0 +1,135 @@
+package peergos.email;
+
+import peergos.shared.user.CommittedWriterData;
+import peergos.shared.user.UserContext;
+import peergos.shared.user.fs.AbsoluteCapability;
+import peergos.shared.user.fs.FileWrapper;
+import peergos.shared.user.fs.NamedAbsoluteCapability;
+import peergos.shared.user.fs.RetrievedCapability;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/*
+ Keeps the number of unread emails in each user's pending inbox. The count is reused while the inbox directory is at
+ the same version, or carried over emails the bridge itself added. Otherwise it is recounted from the directory's child
+ links, without retrieving the children.
+ Whether a link is a subdirectory is not in the link itself, so the metadata of each name not seen before is
+ retrieved once.
+ */
+public class UnreadCounter {
+
+    private static class Count {
+        public final CommittedWriterData version;
+        public final int unread;
+        // the names of the inbox's children at version
+        public final Set<String> names;
+
+        public Count(CommittedWriterData version, int unread, Set<String> names) {
+            this.version = version;
+            this.unread = unread;
+            this.names = names;
+        }
+    }
+
+    private final UserContext context;
+    private final Map<String, Count> counts = new ConcurrentHashMap<>();
+    // username -> child name -> whether it is a directory, for the children of each inbox seen so far
+    private final Map<String, Map<String, Boolean>> kinds = new ConcurrentHashMap<>();
+
+    public UnreadCounter(UserContext context) {
+        this.context = context;
+    }
+
+    public int unread(String username, FileWrapper inbox) {
+        CommittedWriterData version = inbox.version.get(inbox.writer());
+        Count cached = counts.get(username);
+        if (cached != null && cached.version.equals(version)) {
+            return cached.unread;
+        }
+        Set<NamedAbsoluteCapability> links = inbox.getChildrenCapabilities(context.crypto.hasher, context.network).join();
+        Map<String, Boolean> known = kinds.computeIfAbsent(username, u -> new ConcurrentHashMap<>());
+        Set<String> names = links.stream()
+                .map(link -> link.name.name)
+                .collect(Collectors.toSet());
+        known.keySet().retainAll(names);
+        learnKinds(inbox, links, known);
+        int unread = (int) links.stream()
+                .filter(link -> !known.getOrDefault(link.name.name, false))
+                .count();
+        counts.put(username, new Count(version, unread, names));
+        return unread;
+    }
+
+    private void learnKinds(FileWrapper inbox, Set<NamedAbsoluteCapability> links, Map<String, Boolean> known) {
+        // matched up by map key, which the retrieved capability keeps whatever else it adds to the link
+        Map<String, String> unknown = new HashMap<>();
+        List<AbsoluteCapability> caps = new ArrayList<>();
+        for (NamedAbsoluteCapability link : links) {
+            if (!known.containsKey(link.name.name)) {
+                unknown.put(mapKey(link.cap), link.name.name);
+                caps.add(link.cap);
+            }
+        }
+        if (unknown.isEmpty()) {
+            return;
+        }
+        List<RetrievedCapability> retrieved = context.network
+                .retrieveAllMetadata(caps, inbox.version).join();
+        for (RetrievedCapability child : retrieved) {
+            String name = unknown.get(mapKey(child.capability));
+            if (name != null) {
+                known.put(name, child.fileAccess.isDirectory());
+            }
+        }
+    }
+
+    private static String mapKey(AbsoluteCapability cap) {
+        return Base64.getEncoder().encodeToString(cap.getMapKey());
+    }
+
+    /**
+     * Count emails the bridge has just added to an inbox that was at the version of before, and is now at the version
+     * of after. The count carries over to the new version only if the bridge's writes are the only change to the
+     * inbox's children, that is the children of after are those counted plus one new file per email. The new files are
+     * the emails, so nothing needs to be retrieved to know they are not directories. Otherwise the user has changed the
+     * inbox in the meantime, and the count is dropped so the next call to unread() recounts.
+     */
+    public void added(String username, FileWrapper before, FileWrapper after, int emails) {
+        CommittedWriterData from = before.version.get(before.writer());
+        CommittedWriterData to = after.version.get(after.writer());
+        Count cached = counts.get(username);
+        if (cached == null) {
+            return;
+        }
+        if (!cached.version.equals(from)) {
+            counts.remove(username);
+            return;
+        }
+        Set<String> names = after.getChildrenCapabilities(context.crypto.hasher, context.network).join().stream()
+                .map(link -> link.name.name)
+                .collect(Collectors.toSet());
+        if (names.size() != cached.names.size() + emails || !names.containsAll(cached.names)) {
+            counts.remove(username);
+            return;
+        }
+        Map<String, Boolean> known = kinds.computeIfAbsent(username, u -> new ConcurrentHashMap<>());
+        for (String name : names) {
+            if (!cached.names.contains(name)) {
+                known.put(name, false);
+            }
+        }
+        counts.put(username, new Count(to, cached.unread + emails, names));
+    }
+
+    public void invalidate(String username) {
+        counts.remove(username);
+        kinds.remove(username);
+    }
+}
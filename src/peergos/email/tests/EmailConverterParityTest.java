@@ -0,0 +1,190 @@
+package peergos.email.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.simplejavamail.converter.internal.mimemessage.MimeMessageParser;
+import peergos.email.EmailConverter;
+import peergos.email.RawAttachment;
+import peergos.shared.email.EmailMessage;
+import peergos.shared.util.Pair;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.*;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.*;
+
+/*
+ parseMail walks the MIME tree itself rather than through MimeMessageParser.parseMimeMessage, so that attachments are
+ not copied. Over a small corpus of message shapes it has to give the same text, calendar and attachments as the
+ parser did, with each attachment under the same name wherever the parser gave it one.
+ */
+public class EmailConverterParityTest {
+
+    private static final Session SESSION = Session.getInstance(new Properties());
+    private static final String CALENDAR = "BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:-//test//EN\r\nMETHOD:REQUEST\r\n"
+            + "BEGIN:VEVENT\r\nUID:test-event@example.com\r\nDTSTAMP:20240101T090000Z\r\nDTSTART:20240102T090000Z\r\n"
+            + "DTEND:20240102T100000Z\r\nSUMMARY:Planning\r\nEND:VEVENT\r\nEND:VCALENDAR\r\n";
+
+    @Test
+    public void plainText() throws Exception {
+        MimeMessage msg = message();
+        msg.setText("just some text\r\nover two lines", "UTF-8");
+        assertParity(msg);
+    }
+
+    @Test
+    public void htmlAlternative() throws Exception {
+        MimeMessage msg = message();
+        msg.setContent(alternative("the plain version"));
+        assertParity(msg);
+    }
+
+    @Test
+    public void attachments() throws Exception {
+        MimeMessage msg = message();
+        MimeMultipart mixed = new MimeMultipart("mixed");
+        mixed.addBodyPart(bodyPart("see attached", "text/plain; charset=UTF-8"));
+        mixed.addBodyPart(attachment("report.pdf", "application/pdf", bytes(20_000, 1)));
+        mixed.addBodyPart(attachment("notes.txt", "text/plain", "attached text, not the body".getBytes()));
+        mixed.addBodyPart(attachment("empty.bin", "application/octet-stream", new byte[0]));
+        msg.setContent(mixed);
+        assertParity(msg);
+    }
+
+    @Test
+    public void inlineImageReferencedByCid() throws Exception {
+        MimeMessage msg = message();
+        MimeMultipart related = new MimeMultipart("related");
+        related.addBodyPart(bodyPart("<p>logo below</p><img src=\"cid:logo\">", "text/html; charset=UTF-8"));
+        MimeBodyPart image = attachment("logo.png", "image/png", bytes(4_000, 2));
+        image.setContentID("<logo>");
+        image.setDisposition(MimeBodyPart.INLINE);
+        related.addBodyPart(image);
+        MimeMultipart mixed = new MimeMultipart("mixed");
+        MimeBodyPart body = new MimeBodyPart();
+        MimeMultipart alternative = alternative("logo below");
+        MimeBodyPart relatedPart = new MimeBodyPart();
+        relatedPart.setContent(related);
+        alternative.addBodyPart(relatedPart);
+        body.setContent(alternative);
+        mixed.addBodyPart(body);
+        mixed.addBodyPart(attachment("data.csv", "text/csv", "a,b\r\n1,2\r\n".getBytes()));
+        msg.setContent(mixed);
+        assertParity(msg);
+    }
+
+    @Test
+    public void inlineImageWithoutFilename() throws Exception {
+        MimeMessage msg = message();
+        MimeMultipart related = new MimeMultipart("related");
+        related.addBodyPart(bodyPart("<img src=\"cid:chart\">", "text/html; charset=UTF-8"));
+        MimeBodyPart image = new MimeBodyPart();
+        image.setDataHandler(new DataHandler(new ByteArrayDataSource(bytes(3_000, 3), "image/gif")));
+        image.setContentID("<chart>");
+        image.setDisposition(MimeBodyPart.INLINE);
+        related.addBodyPart(image);
+        msg.setContent(related);
+        assertParity(msg);
+    }
+
+    @Test
+    public void calendarInvitation() throws Exception {
+        MimeMessage msg = message();
+        MimeMultipart alternative = alternative("you are invited");
+        alternative.addBodyPart(bodyPart(CALENDAR, "text/calendar; charset=UTF-8; method=REQUEST"));
+        MimeMultipart mixed = new MimeMultipart("mixed");
+        MimeBodyPart body = new MimeBodyPart();
+        body.setContent(alternative);
+        mixed.addBodyPart(body);
+        mixed.addBodyPart(attachment("invite.ics", "text/calendar", CALENDAR.getBytes()));
+        msg.setContent(mixed);
+        assertParity(msg);
+    }
+
+    private static void assertParity(MimeMessage msg) throws Exception {
+        msg.saveChanges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msg.writeTo(out);
+        byte[] raw = out.toByteArray();
+
+        MimeMessageParser.ParsedMimeMessageComponents expected =
+                MimeMessageParser.parseMimeMessage(new MimeMessage(null, new ByteArrayInputStream(raw)));
+        Pair<EmailMessage, List<RawAttachment>> actual =
+                EmailConverter.parseMail(new MimeMessage(null, new ByteArrayInputStream(raw)), () -> "unused");
+        EmailMessage email = actual.left;
+
+        Assert.assertEquals(expected.getFromAddress().getAddress(), email.from);
+        Assert.assertEquals(expected.getSubject(), email.subject);
+        Assert.assertEquals(expected.getMessageId(), email.msgId);
+        Assert.assertEquals(expected.getPlainContent(), email.content);
+        String calendar = expected.getCalendarContent();
+        Assert.assertEquals(calendar == null ? "" : calendar, email.icalEvent);
+
+        // the parser keyed attachments by name and embedded parts by Content-ID. An embedded part was named after its
+        // data source, which has no name without a filename, so parseMail names those after the Content-ID instead.
+        Map<String, DataSource> expectedAttachments = new TreeMap<>(expected.getAttachmentList());
+        for (Map.Entry<String, DataSource> embedded : expected.getCidMap().entrySet()) {
+            String name = embedded.getValue().getName();
+            expectedAttachments.put(name != null ? name : embedded.getKey().replaceAll("^<|>$", ""), embedded.getValue());
+        }
+        Map<String, RawAttachment> actualAttachments = new TreeMap<>();
+        for (RawAttachment attachment : actual.right) {
+            Assert.assertNull("Duplicate attachment name " + attachment.filename,
+                    actualAttachments.put(attachment.filename, attachment));
+        }
+        Assert.assertEquals(expectedAttachments.keySet(), actualAttachments.keySet());
+        for (Map.Entry<String, DataSource> e : expectedAttachments.entrySet()) {
+            RawAttachment attachment = actualAttachments.get(e.getKey());
+            byte[] data;
+            try (InputStream in = e.getValue().getInputStream()) {
+                data = in.readAllBytes();
+            }
+            Assert.assertEquals(new ContentType(e.getValue().getContentType()).getBaseType(), attachment.type);
+            Assert.assertEquals(data.length, attachment.size);
+            Assert.assertArrayEquals(data, attachment.read());
+        }
+    }
+
+    private static MimeMessage message() throws MessagingException {
+        MimeMessage msg = new MimeMessage(SESSION);
+        msg.setFrom(new InternetAddress("alice@example.com"));
+        msg.setRecipients(Message.RecipientType.TO, "bob@example.com");
+        msg.setSubject("Quarterly numbers");
+        msg.setSentDate(new Date(1704096000000L));
+        return msg;
+    }
+
+    private static MimeMultipart alternative(String text) throws MessagingException {
+        MimeMultipart alternative = new MimeMultipart("alternative");
+        alternative.addBodyPart(bodyPart(text, "text/plain; charset=UTF-8"));
+        alternative.addBodyPart(bodyPart("<html><body><p>" + text + "</p></body></html>", "text/html; charset=UTF-8"));
+        return alternative;
+    }
+
+    private static MimeBodyPart bodyPart(String content, String type) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setContent(content, type);
+        return part;
+    }
+
+    private static MimeBodyPart attachment(String filename, String type, byte[] data) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(new ByteArrayDataSource(data, type)));
+        part.setFileName(filename);
+        part.setDisposition(MimeBodyPart.ATTACHMENT);
+        return part;
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,205 @@
+package peergos.email.tests;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import peergos.email.EmailBridge;
+import peergos.server.Builder;
+import peergos.server.Main;
+import peergos.server.tests.PeergosNetworkUtils;
+import peergos.server.util.Args;
+import peergos.shared.Crypto;
+import peergos.shared.NetworkAccess;
+import peergos.shared.email.EmailClient;
+import peergos.shared.email.EmailMessage;
+import peergos.shared.user.App;
+import peergos.shared.user.UserContext;
+
+import javax.net.ssl.SSLContext;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/*
+ Runs the whole bridge, from the accounts file through the scheduler, worker pool and send and receive tasks, for many
+ accounts at once against the local Peergos instance. The IMAP and SMTP servers are minimal in-process stand-ins that
+ speak the protocols over TLS, so the IMAP connection pool, UID sync, windowed fetch and pooled SMTP transports are all
+ used as they are in production. The stand-ins answer straight away, so the times measured are the bridge's own.
+ It is not part of ant test, run it with: ant loadtest -Dloadtest.accounts=N -Dloadtest.messages=M
+ */
+public class LoadTest {
+
+    private static Args args = peergos.server.tests.UserTests.buildArgs().with("useIPFS", "false").with("enable-gc", "false");
+    private static Random random = new Random();
+    private static final Crypto crypto = Main.initCrypto();
+    private static final int ACCOUNTS = Integer.getInteger("loadtest.accounts", 4);
+    private static final int MESSAGES = Integer.getInteger("loadtest.messages", 10);
+    private static final int WORKERS = Integer.getInteger("loadtest.workers", 4);
+    private static final int TIMEOUT_SECONDS = Integer.getInteger("loadtest.timeoutSeconds", 600);
+    private NetworkAccess network = null;
+    private UserContext emailBridgeContext = null;
+    private static final String emailBridgeUsername = "bridge";
+    private static final String emailBridgePassword = "notagoodone";
+    private static final String url = "http://localhost:" + args.getArg("port");
+    private static final boolean isPublicServer = false;
+
+    public LoadTest() throws Exception {
+        network = Builder.buildJavaNetworkAccess(new URL(url), isPublicServer).get();
+        emailBridgeContext = PeergosNetworkUtils.ensureSignedUp(emailBridgeUsername, emailBridgePassword, network, crypto);
+    }
+
+    @BeforeClass
+    public static void init() {
+        Main.PKI_INIT.main(args);
+    }
+
+    private UserContext createNewEmailUser() {
+        String password = "notagoodone";
+        UserContext userContext = PeergosNetworkUtils.ensureSignedUp("a-" + generateUsername(), password,
+                network, crypto);
+
+        App emailApp = App.init(userContext, "email").join();
+        EmailClient client = EmailClient.load(emailApp, crypto).join();
+        client.connectToBridge(userContext, emailBridgeContext.username).join();
+
+        emailBridgeContext.sendReplyFollowRequest(emailBridgeContext.processFollowRequests().join().get(0), true, true).join();
+        userContext.processFollowRequests().join();
+        return userContext;
+    }
+
+    protected String generateUsername() {
+        return "test" + Math.abs(random.nextInt() % 1_000_000);
+    }
+
+    private static void queueOutbound(UserContext userContext, MailStandIns.SMTPStandIn smtp, int index) {
+        String subject = "outbound " + index + " " + userContext.username;
+        EmailMessage email = new EmailMessage("id", "data.id", userContext.username, subject,
+                LocalDateTime.now(), Arrays.asList("a@example.com"), Collections.emptyList(), Collections.emptyList(),
+                "content " + index, true, true, Collections.emptyList(), null,
+                Optional.empty(), Optional.empty(), Optional.empty());
+        App emailApp = App.init(userContext, "email").join();
+        EmailClient client = EmailClient.load(emailApp, crypto).join();
+        smtp.expect(subject);
+        Assert.assertTrue("email queued", client.send(email).join());
+    }
+
+    private static String accountsJson(List<UserContext> users) {
+        return users.stream()
+                .map(u -> "{\"username\": \"" + u.username + "\", \"emailAddress\": \"" + u.username + "@example.com\", "
+                        + "\"smtpUsername\": \"smtp-" + u.username + "\", \"smtpPassword\": \"pwd\", "
+                        + "\"imapUsername\": \"imap-" + u.username + "\", \"imapPassword\": \"pwd\"}")
+                .collect(Collectors.joining(",\n", "[\n", "\n]\n"));
+    }
+
+    @Test
+    public void load() throws Exception {
+        List<UserContext> users = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            users.add(createNewEmailUser());
+        }
+        SSLContext tls = MailStandIns.trustedLocalhostTls();
+        MailStandIns.IMAPStandIn imap = new MailStandIns.IMAPStandIn(tls);
+        MailStandIns.SMTPStandIn smtp = new MailStandIns.SMTPStandIn(tls);
+
+        Path stateDir = Files.createTempDirectory("loadtest");
+        Path accountsFile = stateDir.resolve("accounts.json");
+        Files.write(accountsFile, accountsJson(users).getBytes(StandardCharsets.UTF_8));
+        Properties config = new Properties();
+        config.setProperty("sendIntervalSeconds", "1");
+        config.setProperty("receiveInitialDelaySeconds", "0");
+        config.setProperty("receiveIntervalSeconds", "1");
+        config.setProperty("receiveMaxIntervalSeconds", "1");
+        config.setProperty("maxNumberOfUnreadEmails", Integer.toString(MESSAGES * 2));
+        config.setProperty("workerThreads", Integer.toString(WORKERS));
+
+        for (UserContext user : users) {
+            for (int m = 0; m < MESSAGES; m++) {
+                imap.deliver("imap-" + user.username, MailStandIns.message(user.username + "@example.com", m, 16 * 1024));
+                queueOutbound(user, smtp, m);
+            }
+        }
+        EmailBridge bridge = EmailBridge.build(emailBridgeUsername, emailBridgePassword, url, isPublicServer,
+                "localhost", smtp.port(), "localhost", imap.port(), config, stateDir);
+
+        int total = ACCOUNTS * MESSAGES;
+        resetPeakHeap();
+        long gcStart = gcMillis();
+        long start = System.nanoTime();
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+        Runnable shutdown = bridge.startTasks(config, accountsFile, executor);
+        long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000L;
+        while ((imap.latencies.size() < total || smtp.latencies.size() < total) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        long gcTime = gcMillis() - gcStart;
+        long peakHeap = peakHeap();
+        shutdown.run();
+        executor.shutdownNow();
+        imap.close();
+        smtp.close();
+
+        System.out.println("Load: " + ACCOUNTS + " accounts, " + MESSAGES + " messages each way per account, "
+                + WORKERS + " workers");
+        System.out.printf("Received %d in %.2fs, %.1f msg/s, delivery latency p50 %dms p99 %dms%n",
+                imap.latencies.size(), seconds, imap.latencies.size() / seconds,
+                percentileMillis(imap.latencies, 50), percentileMillis(imap.latencies, 99));
+        System.out.printf("Sent %d in %.2fs, %.1f msg/s, delivery latency p50 %dms p99 %dms%n",
+                smtp.latencies.size(), seconds, smtp.latencies.size() / seconds,
+                percentileMillis(smtp.latencies, 50), percentileMillis(smtp.latencies, 99));
+        System.out.println("Heap high-water mark: " + peakHeap / (1024 * 1024) + " MiB, GC time: " + gcTime + " ms");
+
+        Assert.assertEquals("received", total, imap.latencies.size());
+        Assert.assertEquals("left on the IMAP server", 0, imap.remaining());
+        Assert.assertEquals("sent", total, smtp.latencies.size());
+    }
+
+    private static long percentileMillis(List<Long> nanos, int percentile) {
+        List<Long> sorted;
+        synchronized (nanos) {
+            sorted = new ArrayList<>(nanos);
+        }
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1_000_000;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    // the sum of each heap pool's own peak, an upper bound on the heap in use at any one time
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+}
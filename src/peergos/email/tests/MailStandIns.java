@@ -0,0 +1,465 @@
+package peergos.email.tests;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.converter.EmailConverter;
+import org.simplejavamail.email.EmailBuilder;
+
+import javax.mail.internet.MimeMessage;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.*;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ Minimal IMAP and SMTP servers for tests, speaking just enough of each protocol over TLS for IMAPClient and SMTPMailer
+ */
+public class MailStandIns {
+
+    private static final Random random = new Random();
+
+    // a message with a plain text body and one attachment of random bytes
+    public static byte[] message(String to, int index, int attachmentBytes) throws Exception {
+        byte[] attachment = new byte[attachmentBytes];
+        random.nextBytes(attachment);
+        Email email = EmailBuilder.startingBlank()
+                .fixingMessageId("<load-" + index + "." + to + ">")
+                .from("sender@example.com")
+                .to(to)
+                .withSubject("load " + index)
+                .withPlainText("message " + index)
+                .withAttachment("data.bin", attachment, "application/octet-stream")
+                .buildEmail();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EmailConverter.emailToMimeMessage(email).writeTo(out);
+        return out.toByteArray();
+    }
+
+    /*
+     Accepts TLS connections on a loopback port and serves each one on its own thread
+     */
+    public static abstract class StandInServer implements Closeable {
+        private final ServerSocket server;
+        private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "stand-in-server");
+            t.setDaemon(true);
+            return t;
+        });
+
+        public StandInServer(SSLContext tls) throws IOException {
+            this.server = tls.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            executor.execute(this::acceptLoop);
+        }
+
+        public int port() {
+            return server.getLocalPort();
+        }
+
+        protected abstract void serve(InputStream in, OutputStream out) throws IOException;
+
+        private void acceptLoop() {
+            while (!server.isClosed()) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                executor.execute(() -> {
+                    try (Socket s = socket) {
+                        serve(new BufferedInputStream(s.getInputStream()), new BufferedOutputStream(s.getOutputStream()));
+                    } catch (IOException e) {
+                        // the client closed the connection
+                    }
+                });
+            }
+        }
+
+        // a CRLF terminated line, or null at the end of the stream
+        protected static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                line.write(b);
+            }
+            if (b == -1 && line.size() == 0) {
+                return null;
+            }
+            String res = line.toString(StandardCharsets.ISO_8859_1);
+            return res.endsWith("\r") ? res.substring(0, res.length() - 1) : res;
+        }
+
+        protected static void writeLine(OutputStream out, String line) throws IOException {
+            out.write((line + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+     One Inbox per login, served with the IMAP4rev1 commands the bridge uses: LOGIN, LIST, SELECT, FETCH and UID FETCH
+     of UID, FLAGS, RFC822.SIZE and BODY[], STORE of \Deleted, EXPUNGE, NOOP and LOGOUT
+     */
+    public static class IMAPStandIn extends StandInServer {
+        private static class Stored {
+            public final long uid;
+            public final byte[] raw;
+            public final long arrivedNanos;
+            public boolean deleted;
+
+            public Stored(long uid, byte[] raw, long arrivedNanos) {
+                this.uid = uid;
+                this.raw = raw;
+                this.arrivedNanos = arrivedNanos;
+            }
+        }
+
+        private static class Mailbox {
+            public final List<Stored> messages = new ArrayList<>();
+            public long nextUid = 1;
+        }
+
+        private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+        // from delivery until the bridge expunged the message
+        public final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+
+        public IMAPStandIn(SSLContext tls) throws IOException {
+            super(tls);
+        }
+
+        public void deliver(String login, byte[] raw) {
+            Mailbox box = mailboxes.computeIfAbsent(login, l -> new Mailbox());
+            synchronized (box) {
+                box.messages.add(new Stored(box.nextUid++, raw, System.nanoTime()));
+            }
+        }
+
+        public int remaining() {
+            int total = 0;
+            for (Mailbox box : mailboxes.values()) {
+                synchronized (box) {
+                    total += box.messages.size();
+                }
+            }
+            return total;
+        }
+
+        public int remaining(String login) {
+            Mailbox box = mailboxes.get(login);
+            if (box == null) {
+                return 0;
+            }
+            synchronized (box) {
+                return box.messages.size();
+            }
+        }
+
+        @Override
+        protected void serve(InputStream in, OutputStream out) throws IOException {
+            writeLine(out, "* OK [CAPABILITY IMAP4rev1 IDLE] stand-in ready");
+            Mailbox box = null;
+            String line;
+            while ((line = readLine(in)) != null) {
+                String[] parts = line.split(" ", 3);
+                String tag = parts[0];
+                String command = parts.length > 1 ? parts[1].toUpperCase() : "";
+                String rest = parts.length > 2 ? parts[2] : "";
+                boolean byUid = command.equals("UID");
+                if (byUid) {
+                    String[] sub = rest.split(" ", 2);
+                    command = sub[0].toUpperCase();
+                    rest = sub.length > 1 ? sub[1] : "";
+                }
+                switch (command) {
+                    case "CAPABILITY":
+                        writeLine(out, "* CAPABILITY IMAP4rev1 IDLE");
+                        writeLine(out, tag + " OK CAPABILITY completed");
+                        break;
+                    case "LOGIN":
+                        String login = rest.split(" ")[0].replace("\"", "");
+                        box = mailboxes.computeIfAbsent(login, l -> new Mailbox());
+                        writeLine(out, tag + " OK LOGIN completed");
+                        break;
+                    case "LIST":
+                        writeLine(out, "* LIST (\\HasNoChildren) \"/\" Inbox");
+                        writeLine(out, tag + " OK LIST completed");
+                        break;
+                    case "SELECT":
+                    case "EXAMINE":
+                        synchronized (box) {
+                            writeLine(out, "* FLAGS (\\Deleted \\Seen)");
+                            writeLine(out, "* OK [PERMANENTFLAGS (\\Deleted \\Seen)] flags");
+                            writeLine(out, "* " + box.messages.size() + " EXISTS");
+                            writeLine(out, "* 0 RECENT");
+                            writeLine(out, "* OK [UIDVALIDITY 1] uids valid");
+                            writeLine(out, "* OK [UIDNEXT " + box.nextUid + "] next uid");
+                        }
+                        writeLine(out, tag + " OK [READ-WRITE] " + command + " completed");
+                        break;
+                    case "FETCH":
+                        fetch(box, rest, byUid, out);
+                        writeLine(out, tag + " OK FETCH completed");
+                        break;
+                    case "STORE":
+                        store(box, rest, byUid, out);
+                        writeLine(out, tag + " OK STORE completed");
+                        break;
+                    case "EXPUNGE":
+                        expunge(box, out, true);
+                        writeLine(out, tag + " OK EXPUNGE completed");
+                        break;
+                    case "CLOSE":
+                        expunge(box, out, false);
+                        writeLine(out, tag + " OK CLOSE completed");
+                        break;
+                    case "NOOP":
+                    case "CHECK":
+                        writeLine(out, tag + " OK " + command + " completed");
+                        break;
+                    case "LOGOUT":
+                        writeLine(out, "* BYE stand-in logging out");
+                        writeLine(out, tag + " OK LOGOUT completed");
+                        return;
+                    default:
+                        writeLine(out, tag + " BAD unsupported command");
+                }
+            }
+        }
+
+        private void fetch(Mailbox box, String rest, boolean byUid, OutputStream out) throws IOException {
+            String[] parts = rest.split(" ", 2);
+            String[] items = parts[1].replaceAll("^\\(|\\)$", "").toUpperCase().split(" ");
+            synchronized (box) {
+                for (int i = 0; i < box.messages.size(); i++) {
+                    Stored message = box.messages.get(i);
+                    if (!inSet(parts[0], byUid ? message.uid : i + 1, byUid ? lastUid(box) : box.messages.size())) {
+                        continue;
+                    }
+                    ByteArrayOutputStream response = new ByteArrayOutputStream();
+                    ascii(response, "* " + (i + 1) + " FETCH (UID " + message.uid);
+                    for (String item : items) {
+                        if (item.equals("FLAGS")) {
+                            ascii(response, " FLAGS (" + (message.deleted ? "\\Deleted" : "") + ")");
+                        } else if (item.equals("RFC822.SIZE")) {
+                            ascii(response, " RFC822.SIZE " + message.raw.length);
+                        } else if (item.startsWith("BODY.PEEK[]") || item.startsWith("BODY[]")) {
+                            body(message.raw, item, response);
+                        }
+                    }
+                    ascii(response, ")\r\n");
+                    out.write(response.toByteArray());
+                }
+            }
+        }
+
+        // the whole message, or the <offset.length> part of it that the client asked for
+        private static void body(byte[] raw, String item, ByteArrayOutputStream response) {
+            int start = 0;
+            int length = raw.length;
+            String origin = "";
+            int partial = item.indexOf('<');
+            if (partial >= 0) {
+                String[] range = item.substring(partial + 1, item.length() - 1).split("\\.");
+                start = Math.min(raw.length, Integer.parseInt(range[0]));
+                length = Math.min(raw.length - start, Integer.parseInt(range[1]));
+                origin = "<" + start + ">";
+            }
+            ascii(response, " BODY[]" + origin + " {" + length + "}\r\n");
+            response.write(raw, start, length);
+        }
+
+        private void store(Mailbox box, String rest, boolean byUid, OutputStream out) throws IOException {
+            String[] parts = rest.split(" ", 2);
+            String operation = parts[1].toUpperCase();
+            if (!operation.contains("\\DELETED")) {
+                return;
+            }
+            synchronized (box) {
+                for (int i = 0; i < box.messages.size(); i++) {
+                    Stored message = box.messages.get(i);
+                    if (inSet(parts[0], byUid ? message.uid : i + 1, byUid ? lastUid(box) : box.messages.size())) {
+                        message.deleted = operation.startsWith("+FLAGS");
+                        if (!operation.contains(".SILENT")) {
+                            writeLine(out, "* " + (i + 1) + " FETCH (UID " + message.uid + " FLAGS ("
+                                    + (message.deleted ? "\\Deleted" : "") + "))");
+                        }
+                    }
+                }
+            }
+        }
+
+        private void expunge(Mailbox box, OutputStream out, boolean report) throws IOException {
+            synchronized (box) {
+                for (int i = box.messages.size() - 1; i >= 0; i--) {
+                    Stored message = box.messages.get(i);
+                    if (message.deleted) {
+                        box.messages.remove(i);
+                        latencies.add(System.nanoTime() - message.arrivedNanos);
+                        if (report) {
+                            writeLine(out, "* " + (i + 1) + " EXPUNGE");
+                        }
+                    }
+                }
+            }
+        }
+
+        private static long lastUid(Mailbox box) {
+            return box.messages.isEmpty() ? 0 : box.messages.get(box.messages.size() - 1).uid;
+        }
+
+        // a sequence set like 1:3,5,7:*, where * is the highest number in use
+        private static boolean inSet(String set, long value, long highest) {
+            for (String range : set.split(",")) {
+                String[] ends = range.split(":");
+                long low = ends[0].equals("*") ? highest : Long.parseLong(ends[0]);
+                long high = ends.length == 1 ? low : ends[1].equals("*") ? highest : Long.parseLong(ends[1]);
+                if (value >= Math.min(low, high) && value <= Math.max(low, high)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static void ascii(ByteArrayOutputStream out, String s) {
+            out.writeBytes(s.getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    /*
+     Accepts every email after EHLO, AUTH PLAIN or LOGIN, MAIL, RCPT and DATA, and records when each subject arrived
+     */
+    public static class SMTPStandIn extends StandInServer {
+        private final Map<String, Long> queuedNanos = new ConcurrentHashMap<>();
+        // from the email being queued in the outbox until the server accepted it
+        public final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+
+        public SMTPStandIn(SSLContext tls) throws IOException {
+            super(tls);
+        }
+
+        public void expect(String subject) {
+            queuedNanos.put(subject, System.nanoTime());
+        }
+
+        @Override
+        protected void serve(InputStream in, OutputStream out) throws IOException {
+            writeLine(out, "220 localhost ESMTP stand-in");
+            String line;
+            while ((line = readLine(in)) != null) {
+                String[] parts = line.split(" ");
+                switch (parts[0].toUpperCase()) {
+                    case "EHLO":
+                    case "HELO":
+                        writeLine(out, "250-localhost\r\n250-AUTH PLAIN LOGIN\r\n250 8BITMIME");
+                        break;
+                    case "AUTH":
+                        if (parts[1].equalsIgnoreCase("LOGIN")) {
+                            if (parts.length < 3) {
+                                writeLine(out, "334 VXNlcm5hbWU6");
+                                readLine(in);
+                            }
+                            writeLine(out, "334 UGFzc3dvcmQ6");
+                            readLine(in);
+                        } else if (parts.length < 3) {
+                            writeLine(out, "334 ");
+                            readLine(in);
+                        }
+                        writeLine(out, "235 2.7.0 Authentication successful");
+                        break;
+                    case "MAIL":
+                    case "RCPT":
+                    case "RSET":
+                    case "NOOP":
+                        writeLine(out, "250 2.0.0 Ok");
+                        break;
+                    case "DATA":
+                        writeLine(out, "354 End data with <CR><LF>.<CR><LF>");
+                        received(readData(in));
+                        writeLine(out, "250 2.0.0 Ok: queued");
+                        break;
+                    case "QUIT":
+                        writeLine(out, "221 2.0.0 Bye");
+                        return;
+                    default:
+                        writeLine(out, "502 5.5.2 Command not recognised");
+                }
+            }
+        }
+
+        private static byte[] readData(InputStream in) throws IOException {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            String line;
+            while ((line = readLine(in)) != null && !line.equals(".")) {
+                String unstuffed = line.startsWith("..") ? line.substring(1) : line;
+                data.writeBytes((unstuffed + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            }
+            return data.toByteArray();
+        }
+
+        private void received(byte[] data) {
+            try {
+                String subject = new MimeMessage(null, new ByteArrayInputStream(data)).getSubject();
+                Long queued = queuedNanos.remove(subject);
+                if (queued != null) {
+                    latencies.add(System.nanoTime() - queued);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // a self-signed certificate for localhost, which every TLS client in this JVM then trusts
+    public static SSLContext trustedLocalhostTls() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keys = generator.generateKeyPair();
+        X500Name name = new X500Name("CN=localhost");
+        long now = System.currentTimeMillis();
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name, BigInteger.valueOf(now),
+                new Date(now - 60_000), new Date(now + 24 * 3600_000L), name, keys.getPublic());
+        builder.addExtension(Extension.subjectAlternativeName, false,
+                new GeneralNames(new GeneralName(GeneralName.dNSName, "localhost")));
+        X509Certificate cert = new JcaX509CertificateConverter()
+                .getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keys.getPrivate())));
+
+        char[] password = "stand-in".toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("stand-in", keys.getPrivate(), password, new Certificate[]{cert});
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, password);
+        KeyStore trustStore = KeyStore.getInstance("PKCS12");
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("stand-in", cert);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+        SSLContext tls = SSLContext.getInstance("TLS");
+        tls.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        SSLContext.setDefault(tls);
+        return tls;
+    }
+}
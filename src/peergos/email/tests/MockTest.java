@@ -23,12 +23,14 @@ import peergos.shared.user.fs.FileWrapper;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
@@ -68,7 +70,8 @@ public class MockTest {
         public MockIMAPClient() {
             super("", 0);
         }
-        public abstract void retrieveEmails(String username, String password, Function<MimeMessage, Boolean> uploadFunc) throws MessagingException;
+        public abstract <T> void retrieveEmails(String username, String password, Function<MimeMessage, T> parse,
+                                                Function<T, Boolean> upload, BooleanSupplier leaseHeld) throws MessagingException;
     }
 
     private UserContext createNewEmailUser() {
@@ -103,16 +106,17 @@ public class MockTest {
         Assert.assertTrue("email sent", sentEmail);
     }
 
-    private Attachment createAttachment(UserContext userContext, RawAttachment rawAttachment) {
+    private Attachment createAttachment(UserContext userContext, RawAttachment rawAttachment) throws IOException {
         App emailApp = App.init(userContext, "email").join();
         EmailClient client = EmailClient.load(emailApp, crypto).join();
 
-        String uuid = client.uploadAttachment(rawAttachment.data).join();
-        return new Attachment(rawAttachment.filename, rawAttachment.data.length, rawAttachment.type, uuid);
+        byte[] data = rawAttachment.read();
+        String uuid = client.uploadAttachment(data).join();
+        return new Attachment(rawAttachment.filename, data.length, rawAttachment.type, uuid);
     }
 
     @Test
-    public void sendTest() {
+    public void sendTest() throws IOException {
         UserContext userContext = createNewEmailUser();
         String attachmentContent = "hello!";
         byte[] attachmentData = attachmentContent.getBytes();
@@ -167,9 +171,10 @@ public class MockTest {
         Supplier<String> messageIdSupplier = () -> "<" + Math.abs(random.nextInt(Integer.MAX_VALUE -1)) + "@example.com>";
         EmailRetriever retriever = new EmailRetriever(new MockIMAPClient() {
             @Override
-            public void retrieveEmails(String username, String password, Function<MimeMessage, Boolean> uploadFunc) throws MessagingException {
+            public <T> void retrieveEmails(String username, String password, Function<MimeMessage, T> parse,
+                                           Function<T, Boolean> upload, BooleanSupplier leaseHeld) throws MessagingException {
                 System.out.println("in MockIMAPClient.retrieveEmails");
-                uploadFunc.apply(mimeMessage);
+                upload.apply(parse.apply(mimeMessage));
             }
         }, emailBridgeContext);
         retriever.retrieveEmailsFromServer(userContext.username, emailAddress, messageIdSupplier,
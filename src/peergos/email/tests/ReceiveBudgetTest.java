@@ -0,0 +1,110 @@
+package peergos.email.tests;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import peergos.email.IMAPClient;
+import peergos.email.IMAPSyncState;
+
+import javax.mail.MessagingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+
+/*
+ Polls against an IMAP stand-in with a receive budget smaller than two fetch windows, so a poll can only fetch its
+ next window once the messages of the previous one have been uploaded
+ */
+public class ReceiveBudgetTest {
+
+    private static final int MESSAGES = 12;
+    private static final int WINDOW = 3;
+    private static final int ATTACHMENT_BYTES = 16 * 1024;
+    private static final BooleanSupplier LEASE_HELD = () -> true;
+
+    private static MailStandIns.IMAPStandIn imap;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        imap = new MailStandIns.IMAPStandIn(MailStandIns.trustedLocalhostTls());
+    }
+
+    @AfterClass
+    public static void close() throws Exception {
+        imap.close();
+    }
+
+    // the base64 attachment alone makes each message larger than the attachment, so one window is over 3 of these
+    private static long budget() {
+        return WINDOW * ATTACHMENT_BYTES * 3 / 2;
+    }
+
+    private static IMAPClient client() {
+        return new IMAPClient("localhost", imap.port(), 10, 1, 300, new IMAPSyncState(Optional.empty()), WINDOW,
+                16 * 1024 * 1024, budget());
+    }
+
+    private static void deliver(String login) throws Exception {
+        for (int i = 0; i < MESSAGES; i++) {
+            imap.deliver(login, MailStandIns.message(login + "@example.com", i, ATTACHMENT_BYTES));
+        }
+    }
+
+    // slow enough that the next window is downloaded while the previous one is still being uploaded
+    private static Boolean slowUpload(Object parsed) {
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    @Test(timeout = 60_000)
+    public void pollFetchesWindowsLargerThanHalfTheBudget() throws Exception {
+        String login = "single";
+        deliver(login);
+        IMAPClient client = client();
+        try {
+            client.retrieveEmails(login, "pwd", msg -> msg, ReceiveBudgetTest::slowUpload, LEASE_HELD);
+        } finally {
+            client.shutdown();
+        }
+        Assert.assertEquals(0, imap.remaining(login));
+    }
+
+    @Test(timeout = 60_000)
+    public void concurrentPollsShareTheBudget() throws Exception {
+        List<String> logins = List.of("first", "second", "third", "fourth");
+        for (String login : logins) {
+            deliver(login);
+        }
+        IMAPClient client = client();
+        ExecutorService workers = Executors.newFixedThreadPool(logins.size());
+        try {
+            List<Future<?>> polls = new ArrayList<>();
+            for (String login : logins) {
+                polls.add(workers.submit(() -> {
+                    client.retrieveEmails(login, "pwd", msg -> msg, ReceiveBudgetTest::slowUpload, LEASE_HELD);
+                    return null;
+                }));
+            }
+            for (Future<?> poll : polls) {
+                try {
+                    poll.get();
+                } catch (ExecutionException e) {
+                    throw (MessagingException) e.getCause();
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+            client.shutdown();
+        }
+        for (String login : logins) {
+            Assert.assertEquals(0, imap.remaining(login));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package peergos.email.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import peergos.email.SendJournal;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+public class SendJournalTest {
+
+    private static final LocalDateTime created = LocalDateTime.of(2024, 1, 2, 3, 4, 5);
+
+    @Test
+    public void sentEmailSurvivesRestart() throws Exception {
+        Path file = Files.createTempDirectory("journal").resolve("send-journal.txt");
+        SendJournal journal = new SendJournal(Optional.of(file));
+        SendJournal.Entry claimed = journal.claim("alice", "email1.cbor", "alice@example.com", "<1.2@example.com>", created);
+        journal.claim("alice", "email2.cbor", "alice@example.com", "<3.4@example.com>", created);
+        journal.sent(claimed);
+        journal.shutdown();
+
+        SendJournal reopened = new SendJournal(Optional.of(file));
+        List<SendJournal.Entry> sent = reopened.sent();
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals("<1.2@example.com>", sent.get(0).msgId);
+        Assert.assertEquals(created, sent.get(0).created);
+        // claimed but never confirmed, so it is sent again with the same Message-ID
+        SendJournal.Entry unconfirmed = reopened.get("alice", "email2.cbor").get();
+        Assert.assertFalse(unconfirmed.sent);
+        Assert.assertEquals("<3.4@example.com>", unconfirmed.msgId);
+
+        reopened.filed(sent.get(0));
+        reopened.shutdown();
+        SendJournal again = new SendJournal(Optional.of(file));
+        Assert.assertTrue(again.sent().isEmpty());
+        Assert.assertTrue(again.get("alice", "email1.cbor").isEmpty());
+        again.shutdown();
+    }
+
+    @Test
+    public void truncatedRecordIsIgnored() throws Exception {
+        Path file = Files.createTempDirectory("journal").resolve("send-journal.txt");
+        SendJournal journal = new SendJournal(Optional.of(file));
+        journal.sent(journal.claim("bob", "email1.cbor", "bob@example.com", "<5.6@example.com>", created));
+        journal.shutdown();
+        Files.write(file, "CLAIMED\tbob\temail2.cbor\tbob@example.com\t<7.8@example.com>\t2024-01-0"
+                .getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        SendJournal reopened = new SendJournal(Optional.of(file));
+        Assert.assertEquals(1, reopened.sent().size());
+        Assert.assertTrue(reopened.get("bob", "email2.cbor").isEmpty());
+        reopened.shutdown();
+    }
+
+    @Test
+    public void compactionKeepsOnlyEmailsInFlight() throws Exception {
+        Path file = Files.createTempDirectory("journal").resolve("send-journal.txt");
+        SendJournal journal = new SendJournal(Optional.of(file));
+        SendJournal.Entry kept = journal.claim("carol", "kept.cbor", "carol@example.com", "<9@example.com>", created);
+        for (int i = 0; i < 1000; i++) {
+            SendJournal.Entry entry = journal.claim("carol", i + ".cbor", "carol@example.com", "<" + i + "@example.com>", created);
+            journal.filed(journal.sent(entry));
+        }
+        journal.shutdown();
+        Assert.assertTrue(Files.readAllLines(file).size() < 1000);
+
+        SendJournal reopened = new SendJournal(Optional.of(file));
+        Assert.assertEquals(kept.msgId, reopened.get("carol", "kept.cbor").get().msgId);
+        Assert.assertTrue(reopened.sent().isEmpty());
+        reopened.shutdown();
+    }
+
+    @Test
+    public void fileOnlyExistsWhileEmailsAreInFlight() throws Exception {
+        Path file = Files.createTempDirectory("journal").resolve(SendJournal.filename("dave@example.com"));
+        SendJournal journal = new SendJournal(Optional.of(file));
+        journal.shutdown();
+        Assert.assertFalse(Files.exists(file));
+
+        SendJournal claiming = new SendJournal(Optional.of(file));
+        claiming.claim("dave", "email1.cbor", "dave@example.com", "<10@example.com>", created);
+        claiming.shutdown();
+        Assert.assertTrue(Files.exists(file));
+
+        SendJournal filing = new SendJournal(Optional.of(file));
+        filing.filed(filing.sent(filing.get("dave", "email1.cbor").get()));
+        filing.shutdown();
+        Assert.assertFalse(Files.exists(file));
+    }
+}
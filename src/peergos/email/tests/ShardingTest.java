@@ -0,0 +1,247 @@
+package peergos.email.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import peergos.email.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class ShardingTest {
+
+    private static final List<String> accounts = IntStream.range(0, 200)
+            .mapToObj(i -> "user" + i + "@example.com")
+            .collect(Collectors.toList());
+    private static final long WAIT_MILLIS = 60_000;
+
+    @Test
+    public void ringOnlyMovesAccountsOfRemovedNode() {
+        ConsistentHashRing three = new ConsistentHashRing(Arrays.asList("a", "b", "c"), 100);
+        ConsistentHashRing two = new ConsistentHashRing(Arrays.asList("a", "b"), 100);
+        Set<String> owners = new HashSet<>();
+        for (String account : accounts) {
+            String before = three.owner(account).get();
+            owners.add(before);
+            if (!before.equals("c")) {
+                Assert.assertEquals(before, two.owner(account).get());
+            }
+        }
+        Assert.assertEquals(three.nodes(), owners);
+    }
+
+    @Test
+    public void leaseIsExclusiveUntilExpiry() throws Exception {
+        Path dir = Files.createTempDirectory("leases");
+        LeaseBackend nodeA = new FileLeaseBackend(dir);
+        LeaseBackend nodeB = new FileLeaseBackend(dir);
+        String account = accounts.get(0);
+
+        Assert.assertTrue(nodeA.acquire(account, "a", 500));
+        Assert.assertFalse(nodeB.acquire(account, "b", 500));
+        Assert.assertTrue(nodeA.acquire(account, "a", 500));
+        waitUntil("a's lease expires", () -> nodeB.acquire(account, "b", 500));
+        Assert.assertFalse(nodeA.acquire(account, "a", 500));
+        nodeB.release(account, "b");
+        Assert.assertTrue(nodeA.acquire(account, "a", 500));
+    }
+
+    @Test
+    public void nodesNeverServeTheSameAccount() throws Exception {
+        Path dir = Files.createTempDirectory("leases");
+        long ttl = 1000;
+        ShardCoordinator nodeA = new ShardCoordinator("a", new FileLeaseBackend(dir), ttl, 100);
+        nodeA.start();
+        // a starts alone, so it takes every account
+        Set<String> servedByA = claimAll(nodeA);
+        Assert.assertEquals(accounts.size(), servedByA.size());
+
+        ShardCoordinator nodeB = new ShardCoordinator("b", new FileLeaseBackend(dir), ttl, 100);
+        nodeB.start();
+        waitUntil("a sees b", () -> !accounts.stream().allMatch(nodeA::isAssigned));
+        waitUntil("b sees a", () -> accounts.stream().anyMatch(nodeB::isAssigned));
+        // the jobs on a are still running, so a keeps renewing even the accounts that now belong to b, past their expiry
+        long end = System.currentTimeMillis() + 2 * ttl;
+        while (System.currentTimeMillis() < end) {
+            Assert.assertTrue(claimAll(nodeB).isEmpty());
+            Assert.assertTrue(servedByA.stream().allMatch(nodeA::holds));
+        }
+
+        doneAll(nodeA, servedByA);
+        waitUntil("b takes its accounts", () -> {
+            Set<String> a = claimAll(nodeA);
+            Set<String> b = claimAll(nodeB);
+            doneAll(nodeA, a);
+            doneAll(nodeB, b);
+            assertDisjoint(a, b);
+            return !a.isEmpty() && !b.isEmpty() && a.size() + b.size() == accounts.size();
+        });
+
+        nodeA.shutdown();
+        waitUntil("b takes every account", () -> {
+            Set<String> b = claimAll(nodeB);
+            doneAll(nodeB, b);
+            return b.size() == accounts.size();
+        });
+        nodeB.shutdown();
+    }
+
+    /*
+     Three nodes in separate JVMs work on every account they can claim, each job holding a marker file for the account.
+     Finding another live node's marker means two nodes were working on the same account at once. One node is then
+     killed without releasing anything, and the other two have to pick up its accounts once its leases expire.
+     */
+    @Test
+    public void nodesInSeparateProcessesNeverServeTheSameAccount() throws Exception {
+        Path dir = Files.createTempDirectory("leases");
+        Files.createDirectories(dir.resolve("work"));
+        Files.createDirectories(dir.resolve("progress"));
+        Map<String, Process> nodes = new TreeMap<>();
+        for (String nodeId : List.of("a", "b", "c")) {
+            nodes.put(nodeId, startNode(dir, nodeId));
+        }
+        try {
+            waitUntil("the accounts are shared out between three nodes", () -> {
+                Map<String, Set<Integer>> served = progress(dir, nodes.keySet(), 0);
+                return served.size() == 3 && served.values().stream().noneMatch(Set::isEmpty)
+                        && union(served.values()).size() == accounts.size();
+            });
+
+            nodes.remove("c").destroyForcibly().waitFor();
+            long killed = System.currentTimeMillis();
+            waitUntil("the remaining nodes serve every account", () -> {
+                Map<String, Set<Integer>> served = progress(dir, nodes.keySet(), killed);
+                return union(served.values()).size() == accounts.size();
+            });
+        } finally {
+            Files.write(dir.resolve("stop"), new byte[0]);
+            for (Process node : nodes.values()) {
+                if (!node.waitFor(WAIT_MILLIS, java.util.concurrent.TimeUnit.MILLISECONDS)) {
+                    node.destroyForcibly();
+                }
+            }
+        }
+        for (Map.Entry<String, Process> node : nodes.entrySet()) {
+            Assert.assertEquals("exit code of node " + node.getKey(), 0, node.getValue().exitValue());
+        }
+    }
+
+    private static Process startNode(Path dir, String nodeId) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), ShardingTest.class.getName(),
+                dir.toString(), nodeId)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    /**
+     * One node of nodesInSeparateProcessesNeverServeTheSameAccount, runs until the stop file appears
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get(args[0]);
+        String nodeId = args[1];
+        FileLeaseBackend backend = new FileLeaseBackend(dir);
+        ShardCoordinator node = new ShardCoordinator(nodeId, backend, 2000, 100);
+        node.start();
+        while (!Files.exists(dir.resolve("stop"))) {
+            Set<Integer> served = new TreeSet<>();
+            for (int i = 0; i < accounts.size(); i++) {
+                String account = accounts.get(i);
+                if (!node.claim(account)) {
+                    continue;
+                }
+                try {
+                    if (node.holds(account)) {
+                        work(dir.resolve("work").resolve(Integer.toString(i)), nodeId, backend);
+                        served.add(i);
+                    }
+                } finally {
+                    node.done(account);
+                }
+            }
+            Path tmp = dir.resolve("progress").resolve("." + nodeId);
+            Files.write(tmp, served.stream().map(Object::toString).collect(Collectors.joining(","))
+                    .getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, dir.resolve("progress").resolve(nodeId), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        node.shutdown();
+        System.exit(0);
+    }
+
+    // a marker left by a killed node is taken over once that node has dropped out of the live nodes
+    private static void work(Path marker, String nodeId, FileLeaseBackend backend) throws Exception {
+        try {
+            Files.write(marker, nodeId.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+        } catch (FileAlreadyExistsException e) {
+            String other = new String(Files.readAllBytes(marker), StandardCharsets.UTF_8);
+            if (backend.liveNodes().contains(other)) {
+                System.err.println("Node " + nodeId + " and node " + other + " both working on " + marker.getFileName());
+                System.exit(1);
+            }
+            Files.write(marker, nodeId.getBytes(StandardCharsets.UTF_8));
+        }
+        // long enough for another node working on the same account to find the marker
+        Thread.sleep(1);
+        Files.delete(marker);
+    }
+
+    // the accounts each node served in its last full pass, if that pass ended after sinceMillis
+    private static Map<String, Set<Integer>> progress(Path dir, Set<String> nodeIds, long sinceMillis) throws IOException {
+        Map<String, Set<Integer>> served = new HashMap<>();
+        for (String nodeId : nodeIds) {
+            File file = dir.resolve("progress").resolve(nodeId).toFile();
+            if (!file.exists() || file.lastModified() <= sinceMillis) {
+                continue;
+            }
+            String contents = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            served.put(nodeId, Arrays.stream(contents.split(","))
+                    .filter(s -> !s.isEmpty())
+                    .map(Integer::parseInt)
+                    .collect(Collectors.toSet()));
+        }
+        return served;
+    }
+
+    private static Set<Integer> union(Collection<Set<Integer>> sets) {
+        Set<Integer> all = new HashSet<>();
+        sets.forEach(all::addAll);
+        return all;
+    }
+
+    private interface Condition {
+        boolean holds() throws Exception;
+    }
+
+    // polls instead of sleeping for a fixed time, so a slow machine only makes the test take longer
+    private static void waitUntil(String description, Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                Assert.fail("Timed out waiting until " + description);
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static Set<String> claimAll(ShardCoordinator node) {
+        return accounts.stream()
+                .filter(node::claim)
+                .collect(Collectors.toSet());
+    }
+
+    private static void doneAll(ShardCoordinator node, Set<String> claimed) {
+        claimed.forEach(node::done);
+    }
+
+    private static void assertDisjoint(Set<String> a, Set<String> b) {
+        Set<String> both = new HashSet<>(a);
+        both.retainAll(b);
+        Assert.assertTrue("Accounts served by two nodes: " + both, both.isEmpty());
+    }
+}